@@ -0,0 +1,116 @@
+package methostore.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import methostore.Entity;
+import methostore.impl.lucene.LuceneDatastoreFactory;
+import methostore.impl.lucene.LuceneDatastoreImpl;
+import methostore.impl.lucene.LuceneDatastoreOptions;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A datastore populated with entities, shared by the threads of a benchmark.
+ *
+ * Each entity has a keyword "category" (10 distinct values), a long "rank",
+ * and "properties" text properties p0, p1... of a few words (100 distinct words per property).
+ */
+@State(Scope.Benchmark)
+public class DatastoreState {
+
+  /** ram: RAMDirectory, disk: the default directory of the platform in a temporary directory */
+  @Param({"ram", "disk"})
+  public String store;
+
+  @Param({"1000", "100000"})
+  public int entities;
+
+  /** the number of text properties of each entity */
+  @Param({"4", "32"})
+  public int properties;
+
+  public static final int CATEGORIES = 10;
+  public static final int WORDS = 100;
+
+  public LuceneDatastoreImpl datastore;
+
+  private File _dir = null;
+
+  private String[] _ids;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    if ("ram".equals(store)) {
+      datastore = LuceneDatastoreFactory.createDatastore(new LuceneDatastoreOptions());
+    } else if ("disk".equals(store)) {
+      _dir = File.createTempFile("methostore-bench", "");
+      _dir.delete();
+      datastore = LuceneDatastoreFactory.createDatastore(_dir.getPath(), new LuceneDatastoreOptions());
+    } else {
+      throw new IllegalArgumentException(store);
+    }
+    _ids = new String[entities];
+    List<Entity> batch = new ArrayList<Entity>();
+    for (int i = 0; i < entities; i++) {
+      Entity e = newEntity(i);
+      _ids[i] = e.getId();
+      batch.add(e);
+      if (batch.size() == 1000) {
+        datastore.putAll(batch);
+        batch.clear();
+      }
+    }
+    datastore.putAll(batch);
+    datastore.commit();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    datastore.close();
+    if (_dir != null) {
+      FileUtils.deleteDirectory(_dir);
+    }
+  }
+
+  /** returns a new entity, not yet put */
+  public Entity newEntity(int i) {
+    Entity e = datastore.createEntity();
+    e.setPropertyAsKeyword("category", "c"+(i % CATEGORIES));
+    e.setPropertyAsLong("rank", i);
+    for (int p = 0; p < properties; p++) {
+      e.setProperty("p"+p, "w"+((i + p) % WORDS)+" x"+(i % 7)+" y"+(p % 3));
+    }
+    return e;
+  }
+
+  public Entity newRandomEntity() {
+    return newEntity(ThreadLocalRandom.current().nextInt(entities));
+  }
+
+  public String randomId() {
+    return _ids[ThreadLocalRandom.current().nextInt(_ids.length)];
+  }
+
+  public Map<String, String> randomCategoryQuery() {
+    Map<String, String> query = new HashMap<String, String>();
+    query.put("category", "c"+ThreadLocalRandom.current().nextInt(CATEGORIES));
+    return query;
+  }
+
+  public String randomWordQuery() {
+    return "p0:w"+ThreadLocalRandom.current().nextInt(WORDS);
+  }
+
+}
@@ -0,0 +1,25 @@
+package methostore.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the JMH command line, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar ReadBenchmark -p store=disk -p entities=1000
+ * </pre>
+ * The allocation rate (gc profiler) is reported unless another profiler is given.
+ */
+public class Main {
+
+  public static void main(String[] args) throws Exception {
+    List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+    if (!jmhArgs.contains("-prof")) {
+      jmhArgs.add("-prof");
+      jmhArgs.add("gc");
+    }
+    org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+  }
+
+}
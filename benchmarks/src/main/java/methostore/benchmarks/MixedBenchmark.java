@@ -0,0 +1,62 @@
+package methostore.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import methostore.Entity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent reads and writes on the same datastore: the searchers are reopened while being used.
+ * JMH reports each kind of operation separately.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedBenchmark {
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public Entity get(DatastoreState state) {
+    return state.datastore.get(state.randomId());
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public List<Entity> search(DatastoreState state) {
+    return state.datastore.searchEntities(state.randomCategoryQuery());
+  }
+
+  /** overwrites are not possible with new entities, so the datastore grows */
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Entity putFast(DatastoreState state) {
+    Entity e = state.newRandomEntity();
+    state.datastore.putFast(e);
+    return e;
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Entity put(DatastoreState state) {
+    Entity e = state.newRandomEntity();
+    state.datastore.put(e);
+    return e;
+  }
+
+}
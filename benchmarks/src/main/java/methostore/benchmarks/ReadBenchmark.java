@@ -0,0 +1,46 @@
+package methostore.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import methostore.Entity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** the read paths of the Datastore API, on a datastore without writes */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+  @Benchmark
+  public Entity get(DatastoreState state) {
+    return state.datastore.get(state.randomId());
+  }
+
+  /** about entities/10 matches, bounded by the max number of results */
+  @Benchmark
+  public List<Entity> searchEntitiesMap(DatastoreState state) {
+    return state.datastore.searchEntities(state.randomCategoryQuery());
+  }
+
+  /** parses the query, about entities/100 matches */
+  @Benchmark
+  public List<Entity> searchEntitiesString(DatastoreState state) {
+    return state.datastore.searchEntities(state.randomWordQuery());
+  }
+
+  @Benchmark
+  public List<Entity> getAllEntities(DatastoreState state) {
+    return state.datastore.getAllEntities();
+  }
+
+}
@@ -0,0 +1,40 @@
+package methostore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import methostore.Entity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * put (durable, waits for a commit) vs putFast (visible, not durable).
+ * The entities are new, the datastore grows during the measurement.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+  @Benchmark
+  public Entity put(DatastoreState state) {
+    Entity e = state.newRandomEntity();
+    state.datastore.put(e);
+    return e;
+  }
+
+  @Benchmark
+  public Entity putFast(DatastoreState state) {
+    Entity e = state.newRandomEntity();
+    state.datastore.putFast(e);
+    return e;
+  }
+
+}
@@ -0,0 +1,32 @@
+package methostore;
+
+import java.util.Map;
+
+/** Represents the facets and statistics to compute over the entities matching a query.
+ * Aggregation instances are obtained with {@link Datastore#createAggregation()}
+ * and filled by {@link Datastore#aggregate(Query, Aggregation)} (a new call replaces the results).
+ * */
+public interface Aggregation {
+  /** counts the matching entities per value of a keyword property (set with setPropertyAsKeyword) */
+  Aggregation addFacet(String property);
+  /** computes the count, sum, min, max and average of a numeric property */
+  Aggregation addStats(String property);
+  /** returns the number of matching entities */
+  int getCount();
+  /** returns the number of matching entities per value, most frequent first; null if the facet was not requested */
+  Map<String, Integer> getFacet(String property);
+  /** returns the statistics of a numeric property; null if they were not requested */
+  Stats getStats(String property);
+
+  /** the statistics of a numeric property over the matching entities having it */
+  public interface Stats {
+    long getCount();
+    double getSum();
+    /** NaN if count is 0 */
+    double getMin();
+    /** NaN if count is 0 */
+    double getMax();
+    /** NaN if count is 0 */
+    double getAverage();
+  }
+}
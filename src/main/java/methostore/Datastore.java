@@ -1,8 +1,10 @@
 package methostore;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 
 /** 
@@ -31,12 +33,40 @@ public interface Datastore {
 	/** deletes an Entity */
 	public Datastore delete(Entity e);
 
+	/** puts or updates all entities at once (more efficient than several calls to put) */
+	public Datastore putAll(Iterable<Entity> entities);
+
+	/** deletes all entities with the given IDs at once */
+	public Datastore deleteAll(Collection<String> ids);
+
+	/** deletes all entities matching the query, without loading them
+	 * The query language is the one of {@link #searchEntities(String query)}
+	 * */
+	public Datastore deleteByQuery(String query);
+
 	/** returns an entity directly with its ID 
 	 * Should be more efficient than searchEntities 
 	 * @throws NoSuchElementException if none is found
 	 * */
 	public Entity get(String id);
+
+	/** returns the entities with the given IDs, by ID, resolved all at once
+	 * The IDs which are not found are not in the map (no exception is thrown)
+	 * */
+	public Map<String, Entity> getAll(Collection<String> ids);
+
+	/** returns an entity directly with its ID, with only the given properties (and the ID) 
+	 * Faster than {@link #get(String)} for entities with many properties
+	 * @throws NoSuchElementException if none is found
+	 * */
+	public Entity get(String id, Set<String> properties);
 	
+	/** creates a new structured Query, see {@link #searchEntities(Query query)} */
+	public Query createQuery();
+
+	/** returns  all entities matching a structured query (no query parsing involved) */
+	public List<Entity> searchEntities(Query query);
+
 	/** returns  all entities matching all fields/values of the map */
 	public List<Entity> searchEntities(Map<String, String> query);
 	
@@ -45,8 +75,46 @@ public interface Datastore {
 	 * */
 	public List<Entity> searchEntities(String query);
 
+	/** returns  all entities matching the query, with only the given properties (and the ID) */
+	public List<Entity> searchEntities(String query, Set<String> properties);
+
+	/** returns the number of entities matching the query, without loading them */
+	public int count(String query);
+
+	/** returns the number of entities matching all fields/values of the map, without loading them */
+	public int count(Map<String, String> query);
+
+	/** creates a new Aggregation, see {@link #aggregate(Query query, Aggregation aggregation)} */
+	public Aggregation createAggregation();
+
+	/** computes the facets and statistics of the aggregation over all entities matching the structured query,
+	 * in a single pass and without loading the entities (the number of entities is not bounded).
+	 * Returns the aggregation with its results.
+	 * */
+	public Aggregation aggregate(Query query, Aggregation aggregation);
+
+	/** same as {@link #aggregate(Query query, Aggregation aggregation)} with a query in the query language of {@link #searchEntities(String query)} */
+	public Aggregation aggregate(String query, Aggregation aggregation);
+
+	/** returns the number of entities of the datastore */
+	public int size();
+
+	/** returns true iff an entity with this ID exists */
+	public boolean exists(String id);
+
 	/** returns  all entities of the datastore */
 	public List<Entity> getAllEntities();
+
+	/** returns a cursor over all entities matching the query, loaded lazily
+	 * Contrary to {@link #searchEntities(String query)}, the number of results is not bounded.
+	 * The cursor must be closed.
+	 * */
+	public EntityCursor iterateEntities(String query);
+
+	/** returns a cursor over all entities of the datastore, loaded lazily
+	 * The cursor must be closed.
+	 * */
+	public EntityCursor iterateAllEntities();
 	
 	/** is an handy shortcut for create and put */
 	public Datastore createAndSaveEntity(Map<String, String> m);
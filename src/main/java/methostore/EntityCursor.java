@@ -0,0 +1,25 @@
+package methostore;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterates over entities loaded lazily, page by page.
+ * 
+ * A cursor holds resources of the datastore (e.g. an index reader) until it is
+ * exhausted or closed, hence it must always be closed:
+ * <pre>
+ * EntityCursor c = ds.iterateAllEntities();
+ * try {
+ *   while (c.hasNext()) { Entity e = c.next(); ... }
+ * } finally {
+ *   c.close();
+ * }
+ * </pre>
+ */
+public interface EntityCursor extends Iterator<Entity>, Closeable {
+
+  /** releases the underlying resources, can be called several times */
+  public void close();
+
+}
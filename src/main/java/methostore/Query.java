@@ -1,9 +1,29 @@
 package methostore;
 
-/** Represents a query */
+/** Represents a query 
+ * Query instances are obtained with {@link Datastore#createQuery()}
+ * and all their items must match (boolean AND).
+ * */
 public interface Query {
   /** adds a query item */
   Query addItem(String field, String value);
   /** filters entities that field.contains(value)*/
   Query addFilter(String field, String value);
+  /** adds a query item matching the values of field starting with prefix */
+  Query addPrefix(String field, String prefix);
+  /** adds a query item matching min <= field <= max, for properties set with setPropertyAsLong */
+  Query addRange(String field, long min, long max);
+  /** adds a query item matching min <= field <= max, for properties set with setPropertyAsDouble */
+  Query addRange(String field, double min, double max);
+  /** filters entities with min <= field <= max, for properties set with setPropertyAsLong (does not change the relevance)*/
+  Query addRangeFilter(String field, long min, long max);
+  /** filters entities with min <= field <= max, for properties set with setPropertyAsDouble (does not change the relevance)*/
+  Query addRangeFilter(String field, double min, double max);
+  /** sorts the results on a numeric or keyword property instead of relevance 
+   * (the next calls are used to break ties) */
+  Query orderBy(String field, boolean descending);
+  /** excludes the entities matching the other query (boolean NOT) */
+  Query addNot(Query q);
+  /** adds a query item matching at least one of the other queries (boolean OR) */
+  Query addAnyOf(Query... alternatives);
 }
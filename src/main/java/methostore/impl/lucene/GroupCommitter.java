@@ -0,0 +1,116 @@
+package methostore.impl.lucene;
+
+/**
+ * merges the commits of concurrent writers into a single Lucene commit.
+ *
+ * Each write registers itself with {@link #written()} once it is in the
+ * IndexWriter and then calls {@link #awaitDurable(long)}. The first waiting
+ * writer becomes the leader: it waits at most maxLatencyMillis for other writes
+ * (or until maxBatchSize writes are pending) and then commits all of them at once.
+ * The other writers simply wait for this commit.
+ */
+// this class must remain package visible
+class GroupCommitter {
+
+  private final LuceneDatastoreImpl _datastore;
+
+  /** the max time a write waits for other writes before being committed */
+  private long _maxLatencyMillis = 0;
+
+  /** the max number of writes merged in a single commit */
+  private int _maxBatchSize = 1;
+
+  /** sequence number of the last write in the IndexWriter */
+  private long _lastWrite = 0;
+
+  /** sequence number of the last durable write */
+  private long _lastCommitted = 0;
+
+  /** true if a leader is committing or collecting a batch */
+  private boolean _committing = false;
+
+  GroupCommitter(LuceneDatastoreImpl datastore) {
+    this._datastore = datastore;
+  }
+
+  synchronized void configure(long maxLatencyMillis, int maxBatchSize) {
+    if (maxLatencyMillis < 0 || maxBatchSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this._maxLatencyMillis = maxLatencyMillis;
+    this._maxBatchSize = maxBatchSize;
+  }
+
+  /** records that a write is now in the IndexWriter and returns its sequence number */
+  synchronized long written() {
+    _lastWrite++;
+    // wakes up a leader waiting for a full batch
+    notifyAll();
+    return _lastWrite;
+  }
+
+  /** records that a commit was done outside of the group committer (e.g. toDisk) */
+  synchronized void committed(long lastWrite) {
+    if (lastWrite > _lastCommitted) {
+      _lastCommitted = lastWrite;
+    }
+    notifyAll();
+  }
+
+  synchronized long lastWrite() {
+    return _lastWrite;
+  }
+
+  /** true if some writes are not committed yet */
+  synchronized boolean hasUncommitted() {
+    return _lastWrite > _lastCommitted;
+  }
+
+  /** blocks until the write with the given sequence number is committed */
+  void awaitDurable(long seq) {
+    long target;
+    try {
+      synchronized (this) {
+        while (_committing && _lastCommitted < seq) {
+          wait();
+        }
+        if (_lastCommitted >= seq) {
+          return;
+        }
+        // we are the leader, let's collect the concurrent writes
+        _committing = true;
+        long deadline = System.currentTimeMillis() + _maxLatencyMillis;
+        long remaining = _maxLatencyMillis;
+        while (_lastWrite - _lastCommitted < _maxBatchSize && remaining > 0) {
+          wait(remaining);
+          remaining = deadline - System.currentTimeMillis();
+        }
+        target = _lastWrite;
+      }
+    } catch (InterruptedException e) {
+      synchronized (this) {
+        _committing = false;
+        notifyAll();
+      }
+      Thread.currentThread().interrupt();
+      throw new MethostoreException(e);
+    }
+
+    // all writes up to target are in the IndexWriter, one commit is enough
+    boolean success = false;
+    try {
+      _datastore.commit();
+      success = true;
+    } finally {
+      synchronized (this) {
+        _committing = false;
+        if (success && target > _lastCommitted) {
+          _lastCommitted = target;
+        }
+        // if the commit failed, another waiter becomes leader and retries
+        notifyAll();
+      }
+    }
+  }
+
+}
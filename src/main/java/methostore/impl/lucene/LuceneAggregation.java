@@ -0,0 +1,194 @@
+package methostore.impl.lucene;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import methostore.Aggregation;
+
+/**
+ * facets and statistics computed by {@link LuceneAggregationCollector},
+ * without loading any stored field.
+ */
+public class LuceneAggregation implements Aggregation {
+
+  static class LuceneStats implements Stats {
+    long _count = 0;
+    double _sum = 0;
+    double _min = Double.POSITIVE_INFINITY;
+    double _max = Double.NEGATIVE_INFINITY;
+
+    void add(double value) {
+      _count++;
+      _sum += value;
+      if (value < _min) {
+        _min = value;
+      }
+      if (value > _max) {
+        _max = value;
+      }
+    }
+
+    void merge(LuceneStats other) {
+      _count += other._count;
+      _sum += other._sum;
+      _min = Math.min(_min, other._min);
+      _max = Math.max(_max, other._max);
+    }
+
+    @Override
+    public long getCount() {
+      return _count;
+    }
+
+    @Override
+    public double getSum() {
+      return _sum;
+    }
+
+    @Override
+    public double getMin() {
+      return _count == 0 ? Double.NaN : _min;
+    }
+
+    @Override
+    public double getMax() {
+      return _count == 0 ? Double.NaN : _max;
+    }
+
+    @Override
+    public double getAverage() {
+      return _count == 0 ? Double.NaN : _sum / _count;
+    }
+
+    @Override
+    public String toString() {
+      return "count="+getCount()+" sum="+getSum()+" min="+getMin()+" max="+getMax()+" avg="+getAverage();
+    }
+  }
+
+  private final Set<String> _facetProperties = new LinkedHashSet<String>();
+  private final Set<String> _statsProperties = new LinkedHashSet<String>();
+
+  // the results
+  private int _count = 0;
+  private final Map<String, Map<String, Integer>> _facets = new HashMap<String, Map<String, Integer>>();
+  private final Map<String, LuceneStats> _stats = new HashMap<String, LuceneStats>();
+
+  @Override
+  public LuceneAggregation addFacet(String property) {
+    _facetProperties.add(property);
+    return this;
+  }
+
+  @Override
+  public LuceneAggregation addStats(String property) {
+    _statsProperties.add(property);
+    return this;
+  }
+
+  Set<String> facetProperties() {
+    return _facetProperties;
+  }
+
+  Set<String> statsProperties() {
+    return _statsProperties;
+  }
+
+  /** returns a new aggregation of the same facets and stats, without results */
+  LuceneAggregation copy() {
+    LuceneAggregation a = new LuceneAggregation();
+    a._facetProperties.addAll(_facetProperties);
+    a._statsProperties.addAll(_statsProperties);
+    return a;
+  }
+
+  void clear() {
+    _count = 0;
+    _facets.clear();
+    _stats.clear();
+    for (String p : _facetProperties) {
+      _facets.put(p, new HashMap<String, Integer>());
+    }
+    for (String p : _statsProperties) {
+      _stats.put(p, new LuceneStats());
+    }
+  }
+
+  void addCount(int count) {
+    _count += count;
+  }
+
+  void addFacetCount(String property, String value, int count) {
+    Map<String, Integer> counts = _facets.get(property);
+    Integer previous = counts.get(value);
+    counts.put(value, previous == null ? count : previous + count);
+  }
+
+  LuceneStats stats(String property) {
+    return _stats.get(property);
+  }
+
+  /** adds the results of another aggregation of the same facets and stats (e.g. of a shard) */
+  void merge(LuceneAggregation other) {
+    _count += other._count;
+    for (Map.Entry<String, Map<String, Integer>> e : other._facets.entrySet()) {
+      for (Map.Entry<String, Integer> value : e.getValue().entrySet()) {
+        addFacetCount(e.getKey(), value.getKey(), value.getValue());
+      }
+    }
+    for (Map.Entry<String, LuceneStats> e : other._stats.entrySet()) {
+      _stats.get(e.getKey()).merge(e.getValue());
+    }
+  }
+
+  @Override
+  public int getCount() {
+    return _count;
+  }
+
+  @Override
+  public Map<String, Integer> getFacet(String property) {
+    Map<String, Integer> counts = _facets.get(property);
+    if (counts == null) {
+      return null;
+    }
+    List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+        int c = e2.getValue().compareTo(e1.getValue());
+        return c != 0 ? c : e1.getKey().compareTo(e2.getKey());
+      }
+    });
+    Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, Integer> e : entries) {
+      result.put(e.getKey(), e.getValue());
+    }
+    return result;
+  }
+
+  @Override
+  public Stats getStats(String property) {
+    return _stats.get(property);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("count=").append(_count);
+    for (String p : _facetProperties) {
+      sb.append(", ").append(p).append("=").append(getFacet(p));
+    }
+    for (String p : _statsProperties) {
+      sb.append(", ").append(p).append(": ").append(getStats(p));
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,128 @@
+package methostore.impl.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Bits;
+
+/**
+ * computes an aggregation in a single pass over the matching documents, with the FieldCache of each segment:
+ * term ords for the facets, long/double arrays for the stats. No stored field is loaded.
+ */
+// this class must remain package visible
+class LuceneAggregationCollector extends Collector {
+
+  private final LuceneAggregation _aggregation;
+
+  private final String[] _facets;
+  private final String[] _stats;
+  private final boolean[] _isLong;
+
+  // the FieldCache arrays of the current segment
+  private FieldCache.StringIndex[] _ords;
+  private int[][] _ordCounts;
+  private long[][] _longs;
+  private double[][] _doubles;
+  private Bits[] _docsWithField;
+  private LuceneAggregation.LuceneStats[] _statsResults;
+
+  private int _count = 0;
+
+  LuceneAggregationCollector(LuceneAggregation aggregation, LuceneSchema schema) {
+    this._aggregation = aggregation;
+    this._facets = aggregation.facetProperties().toArray(new String[0]);
+    this._stats = aggregation.statsProperties().toArray(new String[0]);
+    for (String facet : _facets) {
+      LuceneSchema.Property p = schema.getProperty(facet);
+      if (p != null && p.getType() != LuceneSchema.Type.KEYWORD) {
+        throw new IllegalArgumentException(facet+" is not a keyword property");
+      }
+    }
+    this._isLong = new boolean[_stats.length];
+    for (int i = 0; i < _stats.length; i++) {
+      LuceneSchema.Property p = schema.getProperty(_stats[i]);
+      if (p != null && p.getType() != LuceneSchema.Type.LONG && p.getType() != LuceneSchema.Type.DOUBLE) {
+        throw new IllegalArgumentException(_stats[i]+" is not a numeric property");
+      }
+      // an unknown property has no values, whatever its type
+      _isLong[i] = p == null || p.getType() == LuceneSchema.Type.LONG;
+    }
+    aggregation.clear();
+    this._statsResults = new LuceneAggregation.LuceneStats[_stats.length];
+    for (int i = 0; i < _stats.length; i++) {
+      _statsResults[i] = aggregation.stats(_stats[i]);
+    }
+    this._ords = new FieldCache.StringIndex[_facets.length];
+    this._ordCounts = new int[_facets.length][];
+    this._longs = new long[_stats.length][];
+    this._doubles = new double[_stats.length][];
+    this._docsWithField = new Bits[_stats.length];
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) {
+    // the scores are not used
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return true;
+  }
+
+  @Override
+  public void setNextReader(IndexReader reader, int docBase) throws IOException {
+    flushSegment();
+    for (int i = 0; i < _facets.length; i++) {
+      _ords[i] = FieldCache.DEFAULT.getStringIndex(reader, _facets[i]);
+      _ordCounts[i] = new int[_ords[i].lookup.length];
+    }
+    for (int i = 0; i < _stats.length; i++) {
+      if (_isLong[i]) {
+        _longs[i] = FieldCache.DEFAULT.getLongs(reader, _stats[i], FieldCache.NUMERIC_UTILS_LONG_PARSER, true);
+      } else {
+        _doubles[i] = FieldCache.DEFAULT.getDoubles(reader, _stats[i], FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, true);
+      }
+      _docsWithField[i] = FieldCache.DEFAULT.getDocsWithField(reader, _stats[i]);
+    }
+  }
+
+  @Override
+  public void collect(int doc) {
+    _count++;
+    for (int i = 0; i < _facets.length; i++) {
+      _ordCounts[i][_ords[i].order[doc]]++;
+    }
+    for (int i = 0; i < _stats.length; i++) {
+      if (_docsWithField[i].get(doc)) {
+        _statsResults[i].add(_isLong[i] ? _longs[i][doc] : _doubles[i][doc]);
+      }
+    }
+  }
+
+  /** adds the counts per ord of the current segment to the counts per value */
+  private void flushSegment() {
+    for (int i = 0; i < _facets.length; i++) {
+      if (_ordCounts[i] == null) {
+        continue;
+      }
+      String[] lookup = _ords[i].lookup;
+      // ord 0 is the documents without value
+      for (int ord = 1; ord < lookup.length; ord++) {
+        if (_ordCounts[i][ord] > 0) {
+          _aggregation.addFacetCount(_facets[i], lookup[ord], _ordCounts[i][ord]);
+        }
+      }
+      _ordCounts[i] = null;
+    }
+  }
+
+  /** completes the aggregation once the search is done */
+  void finish() {
+    flushSegment();
+    _aggregation.addCount(_count);
+  }
+
+}
@@ -0,0 +1,378 @@
+package methostore.impl.lucene;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import methostore.Entity;
+import methostore.impl.lucene.LuceneMetricsListener.Operation;
+
+/**
+ * Writes entities in the background: the calls return a future immediately and the writes
+ * go through a bounded queue to a pool of indexing threads, which analyze the documents in parallel
+ * and feed the IndexWriter of the datastore.
+ *
+ * When the queue is full, a write waits (BLOCK), fails immediately (FAIL_FAST),
+ * or makes room by failing the oldest queued write (SHED); failed futures carry a RejectedExecutionException.
+ * The futures complete once the write is in the IndexWriter (INDEXED), visible to the reads (VISIBLE),
+ * or committed (COMMITTED); in the last two cases, the writes completed at the same time share a single
+ * refresh or commit.
+ *
+ * Entities must not be modified once given to the writer.
+ * Instances are obtained with {@link LuceneDatastoreImpl#createAsyncWriter(int, int, Backpressure, Durability)}.
+ */
+public class LuceneAsyncWriter implements Closeable {
+
+  public static enum Backpressure { BLOCK, FAIL_FAST, SHED }
+
+  public static enum Durability { INDEXED, VISIBLE, COMMITTED }
+
+  /** a write request, applied by an indexing thread */
+  private abstract class Write {
+    final CompletableFuture<Void> _future = new CompletableFuture<Void>();
+    final long _start = System.nanoTime();
+    long _seq = 0;
+
+    /** writes into the IndexWriter and returns the sequence number of the last write */
+    abstract long apply();
+
+    abstract Operation operation();
+
+    abstract int size();
+
+    void complete() {
+      _datastore.getMetricsListener().operation(operation(), System.nanoTime() - _start, size());
+      _future.complete(null);
+    }
+
+    void fail(Throwable t) {
+      _future.completeExceptionally(t);
+    }
+  }
+
+  /** stops the thread taking it */
+  private final Write _stop = new Write() {
+    @Override
+    long apply() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    Operation operation() {
+      return null;
+    }
+
+    @Override
+    int size() {
+      return 0;
+    }
+  };
+
+  private final LuceneDatastoreImpl _datastore;
+  private final Backpressure _backpressure;
+  private final Durability _durability;
+
+  /** the writes waiting for an indexing thread */
+  private final BlockingQueue<Write> _queue;
+  /** the writes in the IndexWriter, waiting to be visible or committed */
+  private final BlockingQueue<Write> _indexed = new LinkedBlockingQueue<Write>();
+
+  private final Thread[] _indexers;
+  private final Thread _completer;
+
+  /**
+   * shared by the submitting threads, exclusive for close: once closed, no write is queued anymore,
+   * so the stop markers are the last requests of the queue (and SHED never drops one)
+   */
+  private final ReadWriteLock _submitLock = new ReentrantReadWriteLock();
+  /** guarded by _submitLock */
+  private boolean _closed = false;
+
+  private final AtomicLong _rejected = new AtomicLong();
+  private final AtomicLong _shed = new AtomicLong();
+
+  LuceneAsyncWriter(LuceneDatastoreImpl datastore, int threads, int queueCapacity, Backpressure backpressure, Durability durability) {
+    if (threads < 1 || queueCapacity < 1 || backpressure == null || durability == null) {
+      throw new IllegalArgumentException();
+    }
+    this._datastore = datastore;
+    this._backpressure = backpressure;
+    this._durability = durability;
+    this._queue = new ArrayBlockingQueue<Write>(queueCapacity);
+    this._indexers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      _indexers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          index();
+        }
+      }, "methostore-indexer-"+i);
+      _indexers[i].setDaemon(true);
+      _indexers[i].start();
+    }
+    this._completer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        completeWrites();
+      }
+    }, "methostore-completer");
+    _completer.setDaemon(true);
+    _completer.start();
+  }
+
+  /** puts or updates an entity */
+  public CompletableFuture<Void> put(final Entity e) {
+    if (e == null) {
+      throw new IllegalArgumentException();
+    }
+    return submit(new Write() {
+      @Override
+      long apply() {
+        return _datastore.write(e);
+      }
+
+      @Override
+      Operation operation() {
+        return Operation.PUT;
+      }
+
+      @Override
+      int size() {
+        return 1;
+      }
+    });
+  }
+
+  /** puts or updates all entities, as a single request of the queue */
+  public CompletableFuture<Void> putAll(Iterable<Entity> entities) {
+    if (entities == null) {
+      throw new IllegalArgumentException();
+    }
+    final List<Entity> l = new ArrayList<Entity>();
+    for (Entity e : entities) {
+      l.add(e);
+    }
+    return submit(new Write() {
+      @Override
+      long apply() {
+        long seq = 0;
+        for (Entity e : l) {
+          seq = _datastore.write(e);
+        }
+        return seq;
+      }
+
+      @Override
+      Operation operation() {
+        return Operation.PUT;
+      }
+
+      @Override
+      int size() {
+        return l.size();
+      }
+    });
+  }
+
+  public CompletableFuture<Void> delete(final Entity e) {
+    if (e == null) {
+      throw new IllegalArgumentException();
+    }
+    return submit(new Write() {
+      @Override
+      long apply() {
+        return _datastore.remove(e);
+      }
+
+      @Override
+      Operation operation() {
+        return Operation.DELETE;
+      }
+
+      @Override
+      int size() {
+        return 1;
+      }
+    });
+  }
+
+  /** deletes all entities, as a single request of the queue */
+  public CompletableFuture<Void> deleteAll(Collection<String> ids) {
+    final List<String> l = new ArrayList<String>(ids);
+    return submit(new Write() {
+      @Override
+      long apply() {
+        return _datastore.removeAll(l);
+      }
+
+      @Override
+      Operation operation() {
+        return Operation.DELETE;
+      }
+
+      @Override
+      int size() {
+        return l.size();
+      }
+    });
+  }
+
+  private CompletableFuture<Void> submit(Write w) {
+    _submitLock.readLock().lock();
+    try {
+      if (_closed) {
+        w.fail(new RejectedExecutionException("the writer is closed"));
+        return w._future;
+      }
+      enqueue(w);
+    } finally {
+      _submitLock.readLock().unlock();
+    }
+    return w._future;
+  }
+
+  /** called with the submit lock, the indexing threads are running */
+  private void enqueue(Write w) {
+    switch (_backpressure) {
+    case BLOCK:
+      try {
+        _queue.put(w);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        w.fail(e);
+      }
+      break;
+    case FAIL_FAST:
+      if (!_queue.offer(w)) {
+        _rejected.incrementAndGet();
+        w.fail(new RejectedExecutionException("the write queue is full"));
+      }
+      break;
+    case SHED:
+      while (!_queue.offer(w)) {
+        Write oldest = _queue.poll();
+        if (oldest != null) {
+          _shed.incrementAndGet();
+          oldest.fail(new RejectedExecutionException("shed by a newer write"));
+        }
+      }
+      break;
+    }
+  }
+
+  /** the loop of the indexing threads */
+  private void index() {
+    while (true) {
+      Write w;
+      try {
+        w = _queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (w == _stop) {
+        return;
+      }
+      try {
+        w._seq = w.apply();
+      } catch (Throwable t) {
+        w.fail(t);
+        continue;
+      }
+      if (_durability == Durability.INDEXED) {
+        w.complete();
+      } else {
+        _indexed.add(w);
+      }
+    }
+  }
+
+  /** the loop of the completer thread: one refresh or commit for all writes indexed meanwhile */
+  private void completeWrites() {
+    boolean stop = false;
+    while (!stop) {
+      List<Write> batch = new ArrayList<Write>();
+      try {
+        batch.add(_indexed.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      _indexed.drainTo(batch);
+      stop = batch.remove(_stop);
+      if (batch.isEmpty()) {
+        continue;
+      }
+      long seq = 0;
+      for (Write w : batch) {
+        seq = Math.max(seq, w._seq);
+      }
+      try {
+        if (_durability == Durability.VISIBLE) {
+          _datastore.refresh(seq);
+        } else {
+          _datastore.awaitDurable(seq);
+        }
+        for (Write w : batch) {
+          w.complete();
+        }
+      } catch (Throwable t) {
+        for (Write w : batch) {
+          w.fail(t);
+        }
+      }
+    }
+  }
+
+  /** returns the number of writes waiting for an indexing thread */
+  public int getQueueSize() {
+    return _queue.size();
+  }
+
+  /** returns the number of writes failed because the queue was full (FAIL_FAST) */
+  public long getRejectedCount() {
+    return _rejected.get();
+  }
+
+  /** returns the number of queued writes failed to make room for newer ones (SHED) */
+  public long getShedCount() {
+    return _shed.get();
+  }
+
+  /** completes the queued writes and stops the threads, the next writes are rejected */
+  @Override
+  public void close() {
+    // waits for the submitting threads, e.g. blocked on a full queue while the indexing threads make room
+    _submitLock.writeLock().lock();
+    try {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+    } finally {
+      _submitLock.writeLock().unlock();
+    }
+    try {
+      // after all queued writes
+      for (int i = 0; i < _indexers.length; i++) {
+        _queue.put(_stop);
+      }
+      for (Thread t : _indexers) {
+        t.join();
+      }
+      _indexed.add(_stop);
+      _completer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MethostoreException(e);
+    }
+  }
+
+}
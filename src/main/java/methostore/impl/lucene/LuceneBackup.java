@@ -0,0 +1,106 @@
+package methostore.impl.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNameFilter;
+import org.apache.lucene.store.Directory;
+
+/**
+ * The result of an incremental backup, see {@link LuceneDatastoreImpl#backup(String)}.
+ *
+ * Index files are never modified once written, so a file of the commit already present in the destination
+ * with the same length is skipped. The segments file is copied last, so that the destination remains
+ * the previous backup until the new one is complete; the files of the previous backup are deleted afterwards.
+ * Only the Lucene index files are deleted, the other files of the destination are left as they are.
+ */
+public class LuceneBackup {
+
+  private final long _generation;
+  private int _filesCopied = 0;
+  private int _filesSkipped = 0;
+  private int _filesDeleted = 0;
+  private long _bytesCopied = 0;
+
+  private LuceneBackup(long generation) {
+    this._generation = generation;
+  }
+
+  /** copies the files of the pinned commit into the destination directory */
+  static LuceneBackup copy(IndexCommit commit, Directory destination) throws IOException {
+    LuceneBackup backup = new LuceneBackup(commit.getGeneration());
+    Directory source = commit.getDirectory();
+    String segmentsFile = commit.getSegmentsFileName();
+    Collection<String> files = commit.getFileNames();
+
+    List<String> copied = new ArrayList<String>();
+    for (String file : files) {
+      if (file.equals(segmentsFile)) {
+        continue;
+      }
+      if (destination.fileExists(file) && destination.fileLength(file) == source.fileLength(file)) {
+        backup._filesSkipped++;
+        continue;
+      }
+      backup.copyFile(source, destination, file);
+      copied.add(file);
+    }
+    destination.sync(copied);
+
+    // the new backup becomes visible to readers of the destination
+    backup.copyFile(source, destination, segmentsFile);
+    destination.sync(Collections.singleton(segmentsFile));
+
+    Set<String> keep = new HashSet<String>(files);
+    IndexFileNameFilter indexFiles = IndexFileNameFilter.getFilter();
+    for (String file : destination.listAll()) {
+      if (!keep.contains(file) && indexFiles.accept(null, file) && !file.equals("write.lock")) {
+        destination.deleteFile(file);
+        backup._filesDeleted++;
+      }
+    }
+    return backup;
+  }
+
+  private void copyFile(Directory source, Directory destination, String file) throws IOException {
+    source.copy(destination, file, file);
+    _filesCopied++;
+    _bytesCopied += source.fileLength(file);
+  }
+
+  /** the generation of the commit backed up */
+  public long getGeneration() {
+    return _generation;
+  }
+
+  public int getFilesCopied() {
+    return _filesCopied;
+  }
+
+  /** the files already present in the destination */
+  public int getFilesSkipped() {
+    return _filesSkipped;
+  }
+
+  /** the files of the previous backup deleted from the destination */
+  public int getFilesDeleted() {
+    return _filesDeleted;
+  }
+
+  public long getBytesCopied() {
+    return _bytesCopied;
+  }
+
+  @Override
+  public String toString() {
+    return "backup of commit "+_generation+": "+_filesCopied+" files copied ("+_bytesCopied+" bytes), "
+        +_filesSkipped+" skipped, "+_filesDeleted+" deleted";
+  }
+
+}
@@ -0,0 +1,354 @@
+package methostore.impl.lucene;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import methostore.Entity;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Loads many entities at once, e.g. for an initial load or a reindex.
+ *
+ * The input is split into chunks of consecutive entities, indexed in parallel by several threads,
+ * each chunk with a private IndexWriter in the work directory. The chunks are then added to the datastore
+ * with a single IndexWriter.addIndexes and committed; entities of the datastore with the same IDs are replaced.
+ *
+ * A load is restartable: each finished chunk is marked as done in the work directory, and a load
+ * started again with the same load ID (and the same input) skips the finished chunks.
+ * The load ID is recorded with the commit of the datastore, so a finished load is not done twice.
+ *
+ * Instances are obtained with {@link LuceneDatastoreImpl#createBulkLoader(String)}.
+ * The tool {@link #main(String[])} loads a text file.
+ */
+public class LuceneBulkLoader {
+
+  /** the commit user data key of the ID of the last finished load */
+  static final String LOAD_KEY = "methostore.bulkload";
+
+  private static final String LOAD_ID_FILE = "load.id";
+
+  private final LuceneDatastoreImpl _datastore;
+  private final File _workDir;
+
+  private int _threads = Runtime.getRuntime().availableProcessors();
+  private int _chunkSize = 10000;
+  private double _ramBufferSizeMB = 32;
+
+  // the input is read by one thread at a time, by whole chunks
+  private final Object _inputLock = new Object();
+  private Iterator<Entity> _input = null;
+  private int _nextChunk = 0;
+  private volatile Exception _error = null;
+
+  // progress
+  private volatile String _phase = "idle";
+  private final AtomicLong _read = new AtomicLong();
+  private final AtomicLong _indexed = new AtomicLong();
+  private final AtomicInteger _chunksDone = new AtomicInteger();
+  private final AtomicInteger _chunksSkipped = new AtomicInteger();
+
+  LuceneBulkLoader(LuceneDatastoreImpl datastore, File workDirectory) {
+    this._datastore = datastore;
+    this._workDir = workDirectory;
+  }
+
+  /** the number of indexing threads (default: the number of processors) */
+  public LuceneBulkLoader setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this._threads = threads;
+    return this;
+  }
+
+  /** the number of entities of a chunk, the unit of work and of restart (default 10000) */
+  public LuceneBulkLoader setChunkSize(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this._chunkSize = chunkSize;
+    return this;
+  }
+
+  /** the RAM buffer of the IndexWriter of each thread */
+  public LuceneBulkLoader setRAMBufferSizeMB(double ramBufferSizeMB) {
+    this._ramBufferSizeMB = ramBufferSizeMB;
+    return this;
+  }
+
+  /**
+   * loads the entities (created with the datastore, with unique IDs) and commits them.
+   * loadId identifies the input: a load restarted with the same ID must get the same entities in the same order.
+   * Returns false if the load with this ID was already done.
+   */
+  public synchronized boolean load(String loadId, Iterator<Entity> entities) {
+    if (loadId.equals(_datastore.getUserData(LOAD_KEY))) {
+      _phase = "already loaded";
+      return false;
+    }
+    try {
+      prepareWorkDirectory(loadId);
+      _input = entities;
+      _nextChunk = 0;
+      _error = null;
+      _read.set(0);
+      _indexed.set(0);
+      _chunksDone.set(0);
+      _chunksSkipped.set(0);
+
+      _phase = "indexing";
+      Thread[] workers = new Thread[_threads];
+      for (int i = 0; i < workers.length; i++) {
+        workers[i] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            work();
+          }
+        }, "methostore-bulkload-"+i);
+        workers[i].start();
+      }
+      for (Thread t : workers) {
+        t.join();
+      }
+      if (_error != null) {
+        throw _error;
+      }
+
+      _phase = "merging";
+      int chunks;
+      synchronized (_inputLock) {
+        chunks = _nextChunk;
+      }
+      Directory[] dirs = new Directory[chunks];
+      try {
+        for (int i = 0; i < chunks; i++) {
+          dirs[i] = FSDirectory.open(chunkDirectory(i));
+        }
+        _datastore.addIndexes(dirs, LOAD_KEY, loadId);
+      } finally {
+        for (Directory d : dirs) {
+          if (d != null) {
+            d.close();
+          }
+        }
+      }
+      FileUtils.deleteDirectory(_workDir);
+      _phase = "done";
+      return true;
+    } catch (Exception e) {
+      _phase = "failed";
+      // the work directory is kept for a restart
+      throw e instanceof MethostoreException ? (MethostoreException) e : new MethostoreException(e);
+    } finally {
+      _input = null;
+    }
+  }
+
+  /** keeps the chunks of a previous run of the same load, removes the ones of another load */
+  private void prepareWorkDirectory(String loadId) throws IOException {
+    File idFile = new File(_workDir, LOAD_ID_FILE);
+    if (_workDir.exists() && !(idFile.exists() && loadId.equals(FileUtils.readFileToString(idFile, "UTF-8")))) {
+      FileUtils.deleteDirectory(_workDir);
+    }
+    _workDir.mkdirs();
+    FileUtils.writeStringToFile(idFile, loadId, "UTF-8");
+  }
+
+  private File chunkDirectory(int chunk) {
+    return new File(_workDir, "chunk-"+chunk);
+  }
+
+  private File doneMarker(int chunk) {
+    return new File(_workDir, "chunk-"+chunk+".done");
+  }
+
+  /** the loop of the indexing threads */
+  private void work() {
+    try {
+      List<Entity> chunk = new ArrayList<Entity>(_chunkSize);
+      int i;
+      while (_error == null && (i = nextChunk(chunk)) != -1) {
+        indexChunk(i, chunk);
+        chunk.clear();
+      }
+    } catch (Exception e) {
+      _error = e;
+    }
+  }
+
+  /** reads the next chunk to index into chunk and returns its number, -1 at the end of the input */
+  private int nextChunk(List<Entity> chunk) {
+    synchronized (_inputLock) {
+      while (_input.hasNext()) {
+        int i = _nextChunk++;
+        boolean done = doneMarker(i).exists();
+        for (int n = 0; n < _chunkSize && _input.hasNext(); n++) {
+          Entity e = _input.next();
+          _read.incrementAndGet();
+          if (!done) {
+            chunk.add(e);
+          }
+        }
+        if (!done) {
+          return i;
+        }
+        // indexed by a previous run
+        _chunksSkipped.incrementAndGet();
+      }
+      return -1;
+    }
+  }
+
+  private void indexChunk(int i, List<Entity> chunk) throws IOException {
+    File dir = chunkDirectory(i);
+    // the remains of an interrupted run
+    FileUtils.deleteDirectory(dir);
+    Directory d = FSDirectory.open(dir);
+    try {
+      IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_34, _datastore._analyzer)
+        .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+        .setRAMBufferSizeMB(_ramBufferSizeMB);
+      IndexWriter writer = new IndexWriter(d, config);
+      try {
+        for (Entity e : chunk) {
+          writer.addDocument(_datastore.prepare(e));
+          _indexed.incrementAndGet();
+        }
+      } finally {
+        writer.close();
+      }
+    } finally {
+      d.close();
+    }
+    doneMarker(i).createNewFile();
+    _chunksDone.incrementAndGet();
+  }
+
+  public long getEntitiesRead() {
+    return _read.get();
+  }
+
+  public long getEntitiesIndexed() {
+    return _indexed.get();
+  }
+
+  public int getChunksDone() {
+    return _chunksDone.get();
+  }
+
+  /** the chunks indexed by a previous run of the load */
+  public int getChunksSkipped() {
+    return _chunksSkipped.get();
+  }
+
+  /** returns a human-readable progress report */
+  public String getProgress() {
+    return "bulk load "+_phase+": "+_read.get()+" entities read, "+_indexed.get()+" indexed, "
+        +_chunksDone.get()+" chunks done, "+_chunksSkipped.get()+" skipped";
+  }
+
+  /**
+   * loads a text file into a datastore on disk:
+   * java methostore.impl.lucene.LuceneBulkLoader datastoreDirectory inputFile [threads]
+   *
+   * Each line of the file is an entity, with tab-separated name=value properties (_key=... for the ID).
+   * The work directory is datastoreDirectory.bulkload, and running the tool again after a failure resumes the load.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("usage: LuceneBulkLoader datastoreDirectory inputFile [threads]");
+      System.exit(1);
+    }
+    File input = new File(args[1]);
+    final LuceneDatastoreImpl datastore = LuceneDatastoreFactory.createDatastore(args[0], new LuceneDatastoreOptions());
+    final LuceneBulkLoader loader = datastore.createBulkLoader(args[0]+".bulkload");
+    if (args.length > 2) {
+      loader.setThreads(Integer.parseInt(args[2]));
+    }
+    Thread reporter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(5000);
+            System.out.println(loader.getProgress());
+          }
+        } catch (InterruptedException e) {
+          // done
+        }
+      }
+    }, "methostore-bulkload-progress");
+    reporter.setDaemon(true);
+    reporter.start();
+
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"));
+    try {
+      String loadId = input.getCanonicalPath()+":"+input.length()+":"+input.lastModified();
+      boolean loaded = loader.load(loadId, new Iterator<Entity>() {
+        private String _line = null;
+
+        @Override
+        public boolean hasNext() {
+          try {
+            while (_line == null || _line.length() == 0) {
+              _line = reader.readLine();
+              if (_line == null) {
+                return false;
+              }
+            }
+            return true;
+          } catch (IOException e) {
+            throw new MethostoreException(e);
+          }
+        }
+
+        @Override
+        public Entity next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Entity e = datastore.createEntity();
+          for (String property : _line.split("\t")) {
+            int eq = property.indexOf('=');
+            if (eq > 0) {
+              String name = property.substring(0, eq), value = property.substring(eq + 1);
+              if (LuceneEntity.LUCENE_UUID.equals(name)) {
+                e.setPropertyAsKeyword(name, value);
+              } else {
+                e.setProperty(name, value);
+              }
+            }
+          }
+          _line = null;
+          return e;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      });
+      System.out.println(loaded ? loader.getProgress() : "already loaded: "+loadId);
+    } finally {
+      reporter.interrupt();
+      reader.close();
+      datastore.close();
+    }
+  }
+
+}
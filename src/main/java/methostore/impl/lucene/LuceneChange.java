@@ -0,0 +1,64 @@
+package methostore.impl.lucene;
+
+import methostore.Entity;
+
+/** a put, a delete or a bulk load of the change feed of a datastore, see {@link LuceneChangeFeed} */
+public class LuceneChange {
+
+  /** BULK_LOAD replaced or added entities without one change per entity: the consumers must read the datastore again */
+  public static enum Type { PUT, DELETE, DELETE_BY_QUERY, BULK_LOAD }
+
+  private final long _sequence;
+  private final Type _type;
+  private final String _id;
+  private final Entity _entity;
+  private final String _query;
+  private final String _field;
+
+  LuceneChange(long sequence, Type type, String id, Entity entity, String query, String field) {
+    this._sequence = sequence;
+    this._type = type;
+    this._id = id;
+    this._entity = entity;
+    this._query = query;
+    this._field = field;
+  }
+
+  /** the position of the change in the feed, increasing by 1 at each change */
+  public long getSequence() {
+    return _sequence;
+  }
+
+  public Type getType() {
+    return _type;
+  }
+
+  /** the ID of the entity put or deleted, the load ID for BULK_LOAD, null for DELETE_BY_QUERY */
+  public String getId() {
+    return _id;
+  }
+
+  /** the entity put (it must not be modified), null for the deletes */
+  public Entity getEntity() {
+    return _entity;
+  }
+
+  /**
+   * the query string of DELETE_BY_QUERY as given to deleteByQuery, to parse with the default field {@link #getField()}
+   * (the toString of the Lucene query when a Query object was given), null otherwise
+   */
+  public String getQuery() {
+    return _query;
+  }
+
+  /** the default field of the query string of DELETE_BY_QUERY, null if a Query object was given or for the other changes */
+  public String getField() {
+    return _field;
+  }
+
+  @Override
+  public String toString() {
+    return _sequence+" "+_type+" "+(_query != null ? _query : _id);
+  }
+
+}
@@ -0,0 +1,180 @@
+package methostore.impl.lucene;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import methostore.Entity;
+
+/**
+ * The ordered changes (puts and deletes) of a datastore, numbered by an increasing sequence number.
+ *
+ * The sequence number of the last change is persisted with each commit, so that the numbering continues
+ * after a restart and consumers can resume from a position. Consumers either subscribe in-process
+ * (with a bounded buffer, writers never wait for consumers) or tail the local change log
+ * (see {@link LuceneDatastoreOptions#setChangeLog(String)} and {@link LuceneChangeLog#openReader(String, long, methostore.Datastore)}).
+ *
+ * A bulk load is a single BULK_LOAD change, not a change per entity. The changes not committed before a crash are lost, as the writes,
+ * and removed from the change log at the next opening.
+ *
+ * The feed of a datastore is obtained with {@link LuceneDatastoreImpl#getChangeFeed()}.
+ */
+public class LuceneChangeFeed {
+
+  /** the commit user data key of the sequence number of the last change */
+  static final String SEQUENCE_KEY = "methostore.changes.seq";
+
+  /** an in-process consumer of the feed */
+  public class Subscription implements Closeable {
+
+    private final BlockingQueue<LuceneChange> _buffer;
+    private volatile boolean _overflowed = false;
+    private long _lastSequence;
+
+    private Subscription(int capacity, long sequence) {
+      this._buffer = new ArrayBlockingQueue<LuceneChange>(capacity);
+      this._lastSequence = sequence;
+    }
+
+    /** called with the lock of the feed */
+    private void offer(LuceneChange change) {
+      if (!_buffer.offer(change)) {
+        // the consumer is too slow: no more changes, so that it cannot miss one silently
+        _overflowed = true;
+        _subscriptions.remove(this);
+      }
+    }
+
+    /**
+     * returns the next change, or null if none arrives within the timeout.
+     * Throws a MethostoreException once the buffer has overflowed and all buffered changes were consumed:
+     * the consumer must resume from {@link #getLastSequence()} with the change log.
+     */
+    public LuceneChange poll(long timeout, TimeUnit unit) throws InterruptedException {
+      LuceneChange change = _overflowed ? _buffer.poll() : _buffer.poll(timeout, unit);
+      if (change == null && _overflowed) {
+        throw new MethostoreException("the subscription overflowed after change "+_lastSequence);
+      }
+      if (change != null) {
+        _lastSequence = change.getSequence();
+      }
+      return change;
+    }
+
+    /** returns the sequence number of the last change consumed (or of the feed at subscription) */
+    public long getLastSequence() {
+      return _lastSequence;
+    }
+
+    public boolean isOverflowed() {
+      return _overflowed;
+    }
+
+    @Override
+    public void close() {
+      _subscriptions.remove(this);
+    }
+  }
+
+  private final LuceneDatastoreImpl _datastore;
+
+  /** the sequence number of the last change, guarded by this */
+  private long _sequence;
+
+  private final List<Subscription> _subscriptions = new CopyOnWriteArrayList<Subscription>();
+  private volatile LuceneChangeLog _log = null;
+
+  LuceneChangeFeed(LuceneDatastoreImpl datastore, long sequence) {
+    this._datastore = datastore;
+    this._sequence = sequence;
+  }
+
+  /** opens the change log and removes the changes after the given committed sequence number */
+  void openLog(File file, long committedSequence) throws IOException {
+    this._log = LuceneChangeLog.open(file, committedSequence);
+  }
+
+  /** returns the sequence number of the last change */
+  public synchronized long getSequence() {
+    return _sequence;
+  }
+
+  /** subscribes to the next changes, with a buffer of capacity changes */
+  public synchronized Subscription subscribe(int capacity) {
+    Subscription s = new Subscription(capacity, _sequence);
+    _subscriptions.add(s);
+    return s;
+  }
+
+  void put(Entity e) {
+    change(LuceneChange.Type.PUT, e.getId(), e, null, null);
+  }
+
+  void delete(String id) {
+    change(LuceneChange.Type.DELETE, id, null, null, null);
+  }
+
+  /** field is the default field of the query string, null if the query is the toString of a Lucene query */
+  void deleteByQuery(String query, String field) {
+    change(LuceneChange.Type.DELETE_BY_QUERY, null, null, query, field);
+  }
+
+  void bulkLoad(String loadId) {
+    change(LuceneChange.Type.BULK_LOAD, loadId, null, null, null);
+  }
+
+  private synchronized void change(LuceneChange.Type type, String id, Entity e, String query, String field) {
+    _sequence++;
+    if (_subscriptions.isEmpty() && _log == null) {
+      return;
+    }
+    LuceneChange change = new LuceneChange(_sequence, type, id, e == null ? null : snapshot(e), query, field);
+    if (_log != null) {
+      try {
+        _log.append(change, _datastore.getSchema());
+      } catch (IOException ex) {
+        throw new MethostoreException(ex);
+      }
+    }
+    for (Subscription s : _subscriptions) {
+      s.offer(change);
+    }
+  }
+
+  /** copies the entity put, which the caller may modify and put again before the change is consumed */
+  private Entity snapshot(Entity e) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      LuceneEntityCodec.write(out, ((LuceneEntity) e).getDocument(), _datastore.getSchema());
+      out.flush();
+      return LuceneEntityCodec.read(ByteBuffer.wrap(bytes.toByteArray()), _datastore);
+    } catch (IOException ex) {
+      throw new MethostoreException(ex);
+    }
+  }
+
+  /** makes the logged changes durable, called by a commit while no change is made */
+  void sync() throws IOException {
+    LuceneChangeLog log = _log;
+    if (log != null) {
+      log.sync();
+    }
+  }
+
+  void close() throws IOException {
+    LuceneChangeLog log = _log;
+    if (log != null) {
+      log.close();
+    }
+  }
+
+}
@@ -0,0 +1,220 @@
+package methostore.impl.lucene;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import methostore.Datastore;
+
+/**
+ * The local append-only log of the change feed of a datastore.
+ *
+ * Each change is a frame: int payload length, int CRC32 of the payload, then the payload:
+ * long sequence number, byte type, the ID (int length + UTF-8), and the entity record of a put
+ * (see {@link LuceneEntityCodec}) or the query of a delete by query.
+ * The frames are buffered and written at each commit of the datastore (or when the buffer is full),
+ * so a reader tailing the log sees the changes at the next commit.
+ */
+public class LuceneChangeLog {
+
+  static final int FRAME_HEADER = 8;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final RandomAccessFile _file;
+  private final FileChannel _channel;
+
+  private final LuceneEntityCodec.ByteArrayOut _buffer = new LuceneEntityCodec.ByteArrayOut();
+  private final DataOutputStream _out = new DataOutputStream(_buffer);
+  private final LuceneEntityCodec.ByteArrayOut _payload = new LuceneEntityCodec.ByteArrayOut();
+  private final DataOutputStream _payloadOut = new DataOutputStream(_payload);
+  private final CRC32 _crc = new CRC32();
+
+  private LuceneChangeLog(RandomAccessFile file) {
+    this._file = file;
+    this._channel = file.getChannel();
+  }
+
+  /** opens the log for appending, after having removed the incomplete frames and the changes after committedSequence */
+  static LuceneChangeLog open(File file, long committedSequence) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    FileChannel channel = raf.getChannel();
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+    while (true) {
+      ByteBuffer payload = readFrame(channel, position, header);
+      if (payload == null || payload.getLong(0) > committedSequence) {
+        break;
+      }
+      position += FRAME_HEADER + payload.capacity();
+    }
+    channel.truncate(position);
+    channel.position(position);
+    return new LuceneChangeLog(raf);
+  }
+
+  /** returns the payload of the frame at position, null if there is no complete and valid frame */
+  static ByteBuffer readFrame(FileChannel channel, long position, ByteBuffer header) throws IOException {
+    header.clear();
+    if (!readFully(channel, position, header)) {
+      return null;
+    }
+    header.flip();
+    int length = header.getInt();
+    int crc = header.getInt();
+    if (length < 1 || length > channel.size() - position - FRAME_HEADER) {
+      return null;
+    }
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    if (!readFully(channel, position + FRAME_HEADER, payload)) {
+      return null;
+    }
+    CRC32 c = new CRC32();
+    c.update(payload.array(), 0, length);
+    if ((int) c.getValue() != crc) {
+      // a torn write
+      return null;
+    }
+    payload.flip();
+    return payload;
+  }
+
+  private static boolean readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position);
+      if (n < 0) {
+        return false;
+      }
+      position += n;
+    }
+    return true;
+  }
+
+  synchronized void append(LuceneChange change, LuceneSchema schema) throws IOException {
+    _payload.reset();
+    _payloadOut.writeLong(change.getSequence());
+    _payloadOut.writeByte(change.getType().ordinal());
+    LuceneEntityCodec.writeString(_payloadOut, change.getId() == null ? "" : change.getId());
+    if (change.getType() == LuceneChange.Type.PUT) {
+      LuceneEntityCodec.write(_payloadOut, ((LuceneEntity) change.getEntity()).getDocument(), schema);
+    } else if (change.getType() == LuceneChange.Type.DELETE_BY_QUERY) {
+      LuceneEntityCodec.writeString(_payloadOut, change.getQuery());
+      LuceneEntityCodec.writeString(_payloadOut, change.getField() == null ? "" : change.getField());
+    }
+    _payloadOut.flush();
+    writeFrame(_out, _payload, _crc);
+    if (_buffer.size() >= BUFFER_SIZE) {
+      flush();
+    }
+  }
+
+  /** writes the frame of a payload */
+  static void writeFrame(DataOutputStream out, LuceneEntityCodec.ByteArrayOut payload, CRC32 crc) throws IOException {
+    crc.reset();
+    crc.update(payload.buffer(), 0, payload.size());
+    out.writeInt(payload.size());
+    out.writeInt((int) crc.getValue());
+    payload.writeTo(out);
+  }
+
+  private void flush() throws IOException {
+    _out.flush();
+    ByteBuffer b = ByteBuffer.wrap(_buffer.buffer(), 0, _buffer.size());
+    while (b.hasRemaining()) {
+      _channel.write(b);
+    }
+    _buffer.reset();
+  }
+
+  /** writes the buffered changes and forces them to disk */
+  synchronized void sync() throws IOException {
+    flush();
+    _channel.force(false);
+  }
+
+  synchronized void close() throws IOException {
+    sync();
+    _file.close();
+  }
+
+  /**
+   * opens a reader of the log starting after the change fromSequence (0 for the whole log).
+   * The entities of the puts are created with datastore (e.g. a replica).
+   */
+  public static Reader openReader(String file, long fromSequence, Datastore datastore) {
+    try {
+      return new Reader(new File(file), fromSequence, datastore);
+    } catch (IOException e) {
+      throw new MethostoreException(e);
+    }
+  }
+
+  /** reads a change log, possibly while it is written */
+  public static class Reader implements Closeable {
+
+    private final FileInputStream _in;
+    private final FileChannel _channel;
+    private final Datastore _datastore;
+    private final long _fromSequence;
+    private final ByteBuffer _header = ByteBuffer.allocate(FRAME_HEADER);
+    private long _position = 0;
+
+    private Reader(File file, long fromSequence, Datastore datastore) throws IOException {
+      this._in = new FileInputStream(file);
+      this._channel = _in.getChannel();
+      this._fromSequence = fromSequence;
+      this._datastore = datastore;
+    }
+
+    /** returns the next change, or null if none is written yet (a later call may return it) */
+    public LuceneChange next() {
+      try {
+        while (true) {
+          ByteBuffer payload = readFrame(_channel, _position, _header);
+          if (payload == null) {
+            return null;
+          }
+          _position += FRAME_HEADER + payload.capacity();
+          long sequence = payload.getLong();
+          if (sequence <= _fromSequence) {
+            continue;
+          }
+          LuceneChange.Type type = LuceneChange.Type.values()[payload.get()];
+          String id = LuceneEntityCodec.readString(payload);
+          switch (type) {
+          case PUT:
+            return new LuceneChange(sequence, type, id, LuceneEntityCodec.read(payload, _datastore), null, null);
+          case DELETE:
+          case BULK_LOAD:
+            return new LuceneChange(sequence, type, id, null, null, null);
+          default:
+            String query = LuceneEntityCodec.readString(payload);
+            String field = LuceneEntityCodec.readString(payload);
+            return new LuceneChange(sequence, type, null, null, query, field.isEmpty() ? null : field);
+          }
+        }
+      } catch (IOException e) {
+        throw new MethostoreException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        _in.close();
+      } catch (IOException e) {
+        throw new MethostoreException(e);
+      }
+    }
+  }
+
+}
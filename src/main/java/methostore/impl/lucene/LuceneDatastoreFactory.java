@@ -1,6 +1,8 @@
 package methostore.impl.lucene;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import methostore.Entity;
 
@@ -32,6 +34,70 @@ public class LuceneDatastoreFactory {
     }
   }
 
+  /** returns a datastore stored in RAM, with the IndexWriter options */
+  public static LuceneDatastoreImpl createDatastore(LuceneDatastoreOptions options) {
+    try {
+      return new LuceneDatastoreImpl(new RAMDirectory(), options);
+    } catch (Exception e) {
+      throw new MethostoreException(e);
+    }
+  }
+
+  /** returns a datastore stored on disk, with the Directory implementation and IndexWriter options */
+  public static LuceneDatastoreImpl createDatastore(String datastoreDirectory, LuceneDatastoreOptions options) {
+    try {
+      return new LuceneDatastoreImpl(options.openDirectory(new File(datastoreDirectory)), options);
+    } catch (Exception e) {
+      throw new MethostoreException(e);
+    }
+  }
+
+  /** returns a datastore sharded in RAM */
+  public static ShardedLuceneDatastore createShardedDatastore(int numberOfShards) {
+    List<LuceneDatastoreImpl> shards = new ArrayList<LuceneDatastoreImpl>();
+    try {
+      for (int i = 0; i < numberOfShards; i++) {
+        shards.add(createDatastore());
+      }
+    } catch (RuntimeException e) {
+      ShardedLuceneDatastore.closeShards(shards);
+      throw e;
+    }
+    return new ShardedLuceneDatastore(shards);
+  }
+
+  /**
+   * returns a datastore sharded on disk, one shard per directory (e.g. on different disks).
+   * The directories must always be given in the same order.
+   */
+  public static ShardedLuceneDatastore createShardedDatastore(String... shardDirectories) {
+    List<LuceneDatastoreImpl> shards = new ArrayList<LuceneDatastoreImpl>();
+    try {
+      for (String dir : shardDirectories) {
+        shards.add(createDatastore(dir));
+      }
+    } catch (RuntimeException e) {
+      // the shards already opened release their write locks
+      ShardedLuceneDatastore.closeShards(shards);
+      throw e;
+    }
+    return new ShardedLuceneDatastore(shards);
+  }
+
+  /** returns a datastore sharded on disk, with the Directory implementation and IndexWriter options */
+  public static ShardedLuceneDatastore createShardedDatastore(LuceneDatastoreOptions options, String... shardDirectories) {
+    List<LuceneDatastoreImpl> shards = new ArrayList<LuceneDatastoreImpl>();
+    try {
+      for (int i = 0; i < shardDirectories.length; i++) {
+        shards.add(createDatastore(shardDirectories[i], options.forShard(i)));
+      }
+    } catch (RuntimeException e) {
+      ShardedLuceneDatastore.closeShards(shards);
+      throw e;
+    }
+    return new ShardedLuceneDatastore(shards);
+  }
+
   /** returns an entity */
   public static Entity createEntity() {
     return new LuceneEntity().setAnalyzer(_analyzer);
@@ -1,27 +1,46 @@
 package methostore.impl.lucene;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import methostore.Aggregation;
 import methostore.Datastore;
 import methostore.Entity;
+import methostore.EntityCursor;
+import methostore.impl.lucene.LuceneMetricsListener.Operation;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.SetBasedFieldSelector;
+import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
@@ -29,9 +48,13 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 /** singleton */ 
@@ -42,14 +65,91 @@ public class LuceneDatastoreImpl implements Datastore {
   // switched to a default WhitespaceAnalyzer
   public Analyzer _analyzer = new WhitespaceAnalyzer(Version.LUCENE_34);
 	private IndexWriter _indexWriter;
+	/** keeps the commits pinned by snapshots, e.g. during a backup */
+	private SnapshotDeletionPolicy _snapshots;
 	Directory _luceneDir = null;
+	private final GroupCommitter _groupCommitter = new GroupCommitter(this);
+	private volatile LuceneSchema _schema;
+	/** the other data persisted with each commit (e.g. the layout of a sharded datastore) */
+	private final Map<String, String> _userData = new ConcurrentHashMap<String, String>();
+	private final LuceneFilterCache _filterCache = new LuceneFilterCache(256);
+	private final LuceneEntityCache _entityCache = new LuceneEntityCache(0);
+	private final LuceneResultCache _resultCache = new LuceneResultCache(0);
+	private LuceneMaintenance _maintenance = null;
+	private volatile LuceneMetricsListener _metrics = LuceneMetricsListener.NONE;
+	private final List<LuceneAsyncWriter> _asyncWriters = new CopyOnWriteArrayList<LuceneAsyncWriter>();
+	private LuceneChangeFeed _changeFeed;
+	/** null if the writes are made durable by Lucene commits */
+	private LuceneWriteAheadLog _wal = null;
+	/** serialize the writes by ID, so that the change feed and the write-ahead log have the order of the index */
+	private final Object[] _writeStripes = new Object[64];
+	/**
+	 * shared by the writes (index update and change sequence number), exclusive while a commit captures its state
+	 * or a bulk load replaces entities:
+	 * a commit contains exactly the changes up to the sequence number it persists
+	 */
+	private final ReadWriteLock _commitGate = new ReentrantReadWriteLock();
+	private final Object _commitLock = new Object();
+
+	// all reads share the same near-real-time searcher
+	private SearcherManager _searcherManager;
+	private final Object _refreshLock = new Object();
+	private long _refreshIntervalMillis = 0;
+	private volatile long _lastRefresh = 0;
+	/** sequence number of the last write visible to _searcherManager */
+	private volatile long _refreshedWrite = 0;
+
+	// the system property is read once, not for every query
+	private int _maxResults = Integer.getInteger("methostore.maxresults", 500);
+	private int _pageSize = 1000;
 	
 	// the constructor must remain package-visible
 	// clients must use the constructor
 	LuceneDatastoreImpl(Directory datastoreDirectory) {
+		this(datastoreDirectory, new LuceneDatastoreOptions());
+	}
+
+	LuceneDatastoreImpl(Directory datastoreDirectory, LuceneDatastoreOptions options) {
+		for (int i = 0; i < this._writeStripes.length; i++) {
+			this._writeStripes[i] = new Object();
+		}
 		try {
 		this._luceneDir = datastoreDirectory;
-		this._indexWriter = new IndexWriter(_luceneDir, new IndexWriterConfig(Version.LUCENE_34, this._analyzer));
+		if (IndexReader.indexExists(_luceneDir)) {
+			// the commits are sorted by generation, the last one is the current state of the index
+			List<IndexCommit> commits = new ArrayList<IndexCommit>(IndexReader.listCommits(_luceneDir));
+			Map<String, String> userData = commits.get(commits.size() - 1).getUserData();
+			this._schema = LuceneSchema.fromCommitUserData(userData);
+			for (Map.Entry<String, String> e : userData.entrySet()) {
+				if (!e.getKey().startsWith(LuceneSchema.COMMIT_KEY_PREFIX)) {
+					this._userData.put(e.getKey(), e.getValue());
+				}
+			}
+		} else {
+			this._schema = new LuceneSchema();
+		}
+		String sequence = this._userData.get(LuceneChangeFeed.SEQUENCE_KEY);
+		long committedSequence = sequence == null ? 0 : Long.parseLong(sequence);
+		this._changeFeed = new LuceneChangeFeed(this, committedSequence);
+		if (options.getChangeLog() != null) {
+			this._changeFeed.openLog(new File(options.getChangeLog()), committedSequence);
+		}
+		IndexWriterConfig config = options.newIndexWriterConfig(_luceneDir, this._analyzer);
+		this._snapshots = new SnapshotDeletionPolicy(config.getIndexDeletionPolicy());
+		config.setIndexDeletionPolicy(this._snapshots);
+		this._indexWriter = new IndexWriter(_luceneDir, config);
+		this._searcherManager = new SearcherManager(this._indexWriter, true, new SearcherFactory());
+		if (options.getWriteAheadLog() != null) {
+			// the writes acknowledged since the last commit are replayed first, without logging them again
+			File walDir = new File(options.getWriteAheadLog());
+			String generation = this._userData.get(LuceneWriteAheadLog.GENERATION_KEY);
+			int replayed = LuceneWriteAheadLog.replay(walDir, generation == null ? 0 : Long.parseLong(generation), this);
+			this._wal = LuceneWriteAheadLog.open(walDir);
+			if (replayed > 0) {
+				this.commit();
+			}
+			this._wal.start(this, options.getWALSyncIntervalMillis(), options.getWALCommitIntervalMillis());
+		}
 		}
 		catch (Exception e) {
 			throw new MethostoreException(e);
@@ -60,8 +160,180 @@ public class LuceneDatastoreImpl implements Datastore {
   /** sets the analyzer for both indexing (new entities) and searching */
   public LuceneDatastoreImpl setAnalyzer(Analyzer a) {
     this._analyzer = a;
+    // the cached results of the query strings were parsed with the previous analyzer
+    this._resultCache.clear();
     return this;
   }
+
+  /** returns the schema of the datastore, which records how each property is indexed */
+  public LuceneSchema getSchema() {
+    return this._schema;
+  }
+
+  IndexWriter getIndexWriter() {
+    return this._indexWriter;
+  }
+
+  /** returns the ordered changes of the datastore */
+  public LuceneChangeFeed getChangeFeed() {
+    return this._changeFeed;
+  }
+
+  /** returns the service compacting the index in the background */
+  public synchronized LuceneMaintenance getMaintenance() {
+    if (this._maintenance == null) {
+      this._maintenance = new LuceneMaintenance(this);
+    }
+    return this._maintenance;
+  }
+
+  /** reports the latencies and sizes of the operations to the listener (e.g. a {@link LuceneMetrics}), null disables it */
+  public LuceneDatastoreImpl setMetricsListener(LuceneMetricsListener listener) {
+    this._metrics = listener == null ? LuceneMetricsListener.NONE : listener;
+    return this;
+  }
+
+  public LuceneMetricsListener getMetricsListener() {
+    return this._metrics;
+  }
+
+  /**
+   * returns a new writer putting and deleting entities in the background with the given number of indexing threads,
+   * see {@link LuceneAsyncWriter}. It is closed with the datastore.
+   * Note that the IndexWriter indexes at most 8 documents concurrently by default, see {@link LuceneDatastoreOptions#setMaxThreadStates(int)}.
+   */
+  public LuceneAsyncWriter createAsyncWriter(int threads, int queueCapacity, LuceneAsyncWriter.Backpressure backpressure, LuceneAsyncWriter.Durability durability) {
+    LuceneAsyncWriter writer = new LuceneAsyncWriter(this, threads, queueCapacity, backpressure, durability);
+    this._asyncWriters.add(writer);
+    return writer;
+  }
+
+  /** replaces the schema by a schema shared with other datastores, after having merged the properties of the current one */
+  void shareSchema(LuceneSchema shared) {
+    if (shared != this._schema) {
+      for (LuceneSchema.Property p : this._schema.getProperties()) {
+        if (shared.getProperty(p.getName()) == null) {
+          shared.register(p);
+        }
+      }
+      this._schema = shared;
+    }
+  }
+
+  /**
+   * enables group commit: concurrent calls to put and delete are merged into a single commit.
+   * A write waits at most maxLatencyMillis for other writes, a commit contains at most
+   * maxBatchSize writes (more if they arrived while the previous commit was running).
+   * put and delete still return only once the write is durable.
+   * The default (0, 1) commits immediately.
+   */
+  public LuceneDatastoreImpl setGroupCommit(long maxLatencyMillis, int maxBatchSize) {
+    this._groupCommitter.configure(maxLatencyMillis, maxBatchSize);
+    return this;
+  }
+
+  /**
+   * sets the min time between two reopenings of the shared searcher.
+   * With the default (0), the searcher is reopened as soon as there are new writes,
+   * so that a read always sees the previous writes.
+   */
+  public LuceneDatastoreImpl setRefreshInterval(long refreshIntervalMillis) {
+    if (refreshIntervalMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    this._refreshIntervalMillis = refreshIntervalMillis;
+    return this;
+  }
+
+  /** returns the shared searcher, it must be given back with {@link #releaseSearcher(IndexSearcher)} */
+  IndexSearcher acquireSearcher() {
+    try {
+      this.maybeRefresh();
+      return this._searcherManager.acquire();
+    } catch (IOException e) {
+      throw new MethostoreException(e);
+    }
+  }
+
+  void releaseSearcher(IndexSearcher searcher) {
+    try {
+      this._searcherManager.release(searcher);
+    } catch (IOException e) {
+      throw new MethostoreException(e);
+    }
+  }
+
+  /** reopens the shared searcher if there are new writes (and the refresh interval is elapsed) */
+  private void maybeRefresh() throws IOException {
+    long lastWrite = this._groupCommitter.lastWrite();
+    if (lastWrite <= this._refreshedWrite) {
+      return;
+    }
+    if (System.currentTimeMillis() - this._lastRefresh < this._refreshIntervalMillis) {
+      return;
+    }
+    this.refresh(lastWrite);
+  }
+
+  /** reopens the shared searcher unless it already contains the write with the given sequence number, regardless of the refresh interval */
+  void refresh(long seq) throws IOException {
+    if (seq <= this._refreshedWrite) {
+      return;
+    }
+    // only readers wait here, writers are never blocked
+    synchronized (this._refreshLock) {
+      if (seq <= this._refreshedWrite) {
+        return;
+      }
+      long target = this._groupCommitter.lastWrite();
+      long start = System.nanoTime();
+      this._searcherManager.maybeRefresh();
+      this._refreshedWrite = target;
+      this._lastRefresh = System.currentTimeMillis();
+      this._metrics.operation(Operation.REOPEN, System.nanoTime() - start, 0);
+      if (this._metrics != LuceneMetricsListener.NONE) {
+        this.reportIndexStats();
+      }
+    }
+  }
+
+  private void reportIndexStats() throws IOException {
+    IndexSearcher searcher = this._searcherManager.acquire();
+    try {
+      IndexReader r = searcher.getIndexReader();
+      IndexReader[] segments = r.getSequentialSubReaders();
+      this._metrics.indexStats(segments == null ? 1 : segments.length, r.numDeletedDocs(), this._indexWriter.ramSizeInBytes());
+    } finally {
+      this._searcherManager.release(searcher);
+    }
+  }
+
+  /** reports the size of the stored fields of a loaded document, returns the document */
+  Document loaded(Document doc) {
+    LuceneMetricsListener metrics = this._metrics;
+    if (metrics != LuceneMetricsListener.NONE) {
+      long bytes = 0;
+      for (Fieldable f : doc.getFields()) {
+        if (f.isBinary()) {
+          bytes += f.getBinaryLength();
+        } else if (f.stringValue() != null) {
+          bytes += utf8Length(f.stringValue());
+        }
+      }
+      metrics.storedBytesLoaded(bytes);
+    }
+    return doc;
+  }
+
+  private static int utf8Length(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      // a surrogate pair is 4 bytes
+      length += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+    }
+    return length;
+  }
   
 
 	/**
@@ -70,7 +342,7 @@ public class LuceneDatastoreImpl implements Datastore {
 	 */
 	@Override
 	public Entity createEntity() {
-		Entity e = new LuceneEntity(_analyzer);
+		Entity e = new LuceneEntity(_analyzer, _schema);
 		return e;
 	}
 
@@ -80,18 +352,26 @@ public class LuceneDatastoreImpl implements Datastore {
 	    throw new IllegalArgumentException();
 	  }
 		try {
-		  this.putFast(e);
-			this._indexWriter.commit();
+		  long start = System.nanoTime();
+		  this.awaitDurable(this.write(e));
+		  this._metrics.operation(Operation.PUT, System.nanoTime() - start, 1);
 			return this;
-		} catch (IOException ex) {
-			throw new MethostoreException(ex);
 		} catch (RuntimeException err) {
 			System.err.println(new Exception().getStackTrace()[0].toString()+"\n"+e.toString());// new Exception is just used for location
 			throw err;
 		}
 	}
 
+	  /** puts or updates an Entity without waiting for it to be committed (or fsynced in the write-ahead log) */
 	  public LuceneDatastoreImpl putFast(Entity e) {
+	    long start = System.nanoTime();
+	    this.write(e);
+	    this._metrics.operation(Operation.PUT, System.nanoTime() - start, 1);
+	    return this;
+	  }
+
+	  /** puts the entity in the IndexWriter and returns its sequence number for the group committer */
+	  long write(Entity e) {
 	    try {
 	      String id = e.getId();
 	      
@@ -99,7 +379,18 @@ public class LuceneDatastoreImpl implements Datastore {
 	      // **hack**: we have to retokenize the id (because of KeywordAnalyzer)
 	      //((LuceneEntity) e).retokenizeId();      
 	      
-	      this._indexWriter.updateDocument(new Term(LuceneEntity.LUCENE_UUID, id),((LuceneEntity) e).getDocument());
+	      this._commitGate.readLock().lock();
+	      try {
+	        synchronized (this.writeStripe(id)) {
+	          this._indexWriter.updateDocument(new Term(LuceneEntity.LUCENE_UUID, id), this.prepare(e));
+	          this._changeFeed.put(e);
+	          if (this._wal != null) {
+	            this._wal.appendPut(((LuceneEntity) e).getDocument(), this._schema);
+	          }
+	        }
+	      } finally {
+	        this._commitGate.readLock().unlock();
+	      }
 	      
 	      // after a put, we have to set again all tokenizer
 	      //((LuceneEntity) e).getDocument().getFields().get(0).
@@ -115,24 +406,348 @@ public class LuceneDatastoreImpl implements Datastore {
 	        }
 	      }
 	      
-	      return this;
+	      long seq = this._groupCommitter.written();
+	      // after written(), so that a concurrent get does not cache the previous version
+	      this._entityCache.invalidate(id);
+	      return seq;
 	    } catch (IOException ex) {
 	      throw new MethostoreException(ex);
 	    }
 	  }
 
+	private Object writeStripe(String id) {
+		int h = id.hashCode();
+		h ^= (h >>> 16);
+		return this._writeStripes[(h & 0x7fffffff) % this._writeStripes.length];
+	}
+
+	/** returns the document of the entity, ready for indexing */
+	Document prepare(Entity e) {
+		// the properties are recorded once in the schema (persisted at the next commit)
+		((LuceneEntity) e).applySchema(this._schema, this._analyzer);
+		for (LuceneSchema.Property p : ((LuceneEntity) e).definitions()) {
+			this._schema.register(p);
+		}
+		return ((LuceneEntity) e).getDocument();
+	}
+
+	/**
+	 * adds the segments of indexes built aside (e.g. by a bulk load) and commits them with the given user data.
+	 * The entities of the datastore with the same IDs are replaced, and a BULK_LOAD change is fed with the user data value (the load ID).
+	 */
+	void addIndexes(Directory[] dirs, String userDataKey, String userDataValue) throws IOException {
+		List<Term> ids = new ArrayList<Term>();
+		if (this._indexWriter.numDocs() > 0) {
+			for (Directory dir : dirs) {
+				IndexReader r = IndexReader.open(dir);
+				try {
+					TermEnum te = r.terms(new Term(LuceneEntity.LUCENE_UUID, ""));
+					try {
+						while (te.term() != null && te.term().field().equals(LuceneEntity.LUCENE_UUID)) {
+							ids.add(te.term());
+							if (!te.next()) {
+								break;
+							}
+						}
+					} finally {
+						te.close();
+					}
+				} finally {
+					r.close();
+				}
+			}
+		}
+		// no write in between: a concurrent put of a loaded ID would leave two documents with this ID
+		this._commitGate.writeLock().lock();
+		try {
+			this._indexWriter.deleteDocuments(ids.toArray(new Term[ids.size()]));
+			this._indexWriter.addIndexes(dirs);
+			this._changeFeed.bulkLoad(userDataValue);
+			this._groupCommitter.written();
+			this._entityCache.clear();
+		} finally {
+			this._commitGate.writeLock().unlock();
+		}
+		this.setUserData(userDataKey, userDataValue);
+		this.commit();
+	}
+
+	/**
+	 * writes all entities to a binary snapshot file, optionally compressed, and returns their number.
+	 * The snapshot is a point-in-time view: the writes done during the export are not included.
+	 * Only the stored properties are exported.
+	 */
+	public long exportSnapshot(String file, boolean compress) {
+		IndexSearcher searcher = this.acquireSearcher();
+		try {
+			return LuceneSnapshot.export(this, searcher, new File(file), compress);
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(searcher);
+		}
+	}
+
+	/** puts all entities of a snapshot file (see {@link #exportSnapshot(String, boolean)}) by batches, and returns their number */
+	public long importSnapshot(String file) {
+		try {
+			return LuceneSnapshot.importInto(this, new File(file), 1000);
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	/**
+	 * commits the pending writes and pins the commit: its files are not deleted until {@link #release(String)},
+	 * even if later commits and merges do not use them anymore (a snapshot of the datastore is not persisted)
+	 */
+	public IndexCommit snapshot(String id) {
+		try {
+			this.commit();
+			return this._snapshots.snapshot(id);
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	/** unpins the commit of a snapshot, its files are deleted at the next commit if they are not used anymore */
+	public void release(String id) {
+		try {
+			this._snapshots.release(id);
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	/**
+	 * copies the current commit into the destination directory while writes continue,
+	 * only the files not present in the destination are copied (see {@link LuceneBackup}).
+	 * The destination can be opened as a datastore.
+	 */
+	public LuceneBackup backup(String destinationDirectory) {
+		String id = "backup-"+System.nanoTime()+"-"+Thread.currentThread().getId();
+		IndexCommit commit = this.snapshot(id);
+		try {
+			Directory destination = FSDirectory.open(new File(destinationDirectory));
+			try {
+				return LuceneBackup.copy(commit, destination);
+			} finally {
+				destination.close();
+			}
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		} finally {
+			this.release(id);
+		}
+	}
+
+	/** creates a loader of many entities at once, working in the given directory, see {@link LuceneBulkLoader} */
+	public LuceneBulkLoader createBulkLoader(String workDirectory) {
+		return new LuceneBulkLoader(this, new File(workDirectory));
+	}
+
+	/** blocks until the write with the given sequence number is durable: fsynced in the write-ahead log or committed (group commit) */
+	void awaitDurable(long seq) {
+		if (this._wal != null) {
+			try {
+				this._wal.awaitSynced();
+			} catch (IOException e) {
+				throw new MethostoreException(e);
+			}
+		} else {
+			this._groupCommitter.awaitDurable(seq);
+		}
+	}
+
+	/** true if some writes are not committed in the index yet */
+	boolean hasUncommittedWrites() {
+		return this._groupCommitter.hasUncommitted();
+	}
+
+	/** returns the data persisted with each commit */
+	private Map<String, String> commitUserData() {
+		Map<String, String> userData = new HashMap<String, String>(this._userData);
+		this._schema.toCommitUserData(userData);
+		userData.put(LuceneChangeFeed.SEQUENCE_KEY, String.valueOf(this._changeFeed.getSequence()));
+		return userData;
+	}
+
+	/** returns a value persisted with the commits, null if none */
+	String getUserData(String key) {
+		return this._userData.get(key);
+	}
+
+	/** sets a value persisted with the next commits */
+	void setUserData(String key, String value) {
+		this._userData.put(key, value);
+	}
+
+	/** puts all entities with a single commit */
+	@Override
+	public LuceneDatastoreImpl putAll(Iterable<Entity> entities) {
+	  if (entities==null) {
+	    throw new IllegalArgumentException();
+	  }
+	  long start = System.nanoTime();
+	  long seq = -1;
+	  int n = 0;
+	  for (Entity e : entities) {
+	    seq = this.write(e);
+	    n++;
+	  }
+	  if (seq != -1) {
+	    this.awaitDurable(seq);
+	  }
+	  this._metrics.operation(Operation.PUT, System.nanoTime() - start, n);
+	  return this;
+	}
+
+	/** commits all pending writes (e.g. the ones done with putFast) */
+	public LuceneDatastoreImpl commit() {
+		try {
+			long start = System.nanoTime();
+			synchronized (this._commitLock) {
+				long lastWrite;
+				long generation = 0;
+				// no write is in progress while the state of the commit is captured (the writes wait for the fsyncs)
+				this._commitGate.writeLock().lock();
+				try {
+					lastWrite = this._groupCommitter.lastWrite();
+					Map<String, String> userData = this.commitUserData();
+					// the logged changes, up to the sequence number committed, are durable before the commit
+					this._changeFeed.sync();
+					if (this._wal != null) {
+						// the writes logged before the roll are in the IndexWriter, hence in this commit
+						generation = this._wal.roll();
+						userData.put(LuceneWriteAheadLog.GENERATION_KEY, String.valueOf(generation));
+					}
+					this._indexWriter.prepareCommit(userData);
+				} finally {
+					this._commitGate.writeLock().unlock();
+				}
+				this._indexWriter.commit();
+				if (this._wal != null) {
+					this._wal.deleteBefore(generation);
+				}
+				this._groupCommitter.committed(lastWrite);
+			}
+			this._metrics.operation(Operation.COMMIT, System.nanoTime() - start, 0);
+			return this;
+		} catch (IOException ex) {
+			throw new MethostoreException(ex);
+		}
+	}
+
 	@Override
 	public Entity get(String id) {
+		long start = System.nanoTime();
+		Entity e = this.cachedGet(id);
+		this._metrics.operation(Operation.GET, System.nanoTime() - start, 1);
+		return e;
+	}
+
+	private Entity cachedGet(String id) {
+		if (!this._entityCache.isEnabled()) {
+			return this.get(id, (FieldSelector) null);
+		}
+		LuceneEntity cached = this._entityCache.get(id);
+		if (cached != null) {
+			return cached;
+		}
+		long generation = this._entityCache.generation();
+		boolean fresh = this.refreshBeforeCaching();
+		LuceneEntity e = this.get(id, (FieldSelector) null);
+		if (fresh) {
+			this._entityCache.put(id, e.getDocument(), generation);
+		}
+		return e;
+	}
+
+	/** refreshes the searcher and returns true if it contains all writes, so that the entities read next can be cached */
+	private boolean refreshBeforeCaching() {
 		try {
-			IndexReader _index = IndexReader.open(this._indexWriter, false);
+			this.maybeRefresh();
+			// with a refresh interval, the searcher may not contain the last writes yet
+			return this._refreshedWrite >= this._groupCommitter.lastWrite();
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	/** resolves the IDs in sorted order with a single TermDocs on a single reader */
+	@Override
+	public Map<String, Entity> getAll(Collection<String> ids) {
+		long start = System.nanoTime();
+		Map<String, Entity> result = new HashMap<String, Entity>();
+		List<String> toLoad = new ArrayList<String>(ids.size());
+		boolean cacheEnabled = this._entityCache.isEnabled();
+		for (String id : ids) {
+			LuceneEntity cached = cacheEnabled ? this._entityCache.get(id) : null;
+			if (cached != null) {
+				result.put(id, cached);
+			} else {
+				toLoad.add(id);
+			}
+		}
+		if (toLoad.isEmpty()) {
+			this._metrics.operation(Operation.GET, System.nanoTime() - start, result.size());
+			return result;
+		}
+		// sorted terms are faster to seek
+		Collections.sort(toLoad);
+
+		long generation = this._entityCache.generation();
+		boolean fresh = cacheEnabled && this.refreshBeforeCaching();
+		IndexSearcher searcher = this.acquireSearcher();
+		try {
+			IndexReader ir = searcher.getIndexReader();
+			TermDocs td = ir.termDocs();
+			try {
+				for (String id : toLoad) {
+					td.seek(new Term(LuceneEntity.LUCENE_UUID, id));
+					if (td.next()) {
+						LuceneEntity e = new LuceneEntity(this.loaded(ir.document(td.doc())));
+						result.put(id, e);
+						if (fresh) {
+							this._entityCache.put(id, e.getDocument(), generation);
+						}
+					}
+				}
+			} finally {
+				td.close();
+			}
+			this._metrics.operation(Operation.GET, System.nanoTime() - start, result.size());
+			return result;
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(searcher);
+		}
+	}
+
+	@Override
+	public Entity get(String id, Set<String> properties) {
+		long start = System.nanoTime();
+		Entity e = this.get(id, fieldSelector(properties));
+		this._metrics.operation(Operation.GET, System.nanoTime() - start, 1);
+		return e;
+	}
+
+	/** selector null means all properties */
+	private LuceneEntity get(String id, FieldSelector selector) {
+		IndexSearcher searcher = this.acquireSearcher();
+		try {
+			IndexReader _index = searcher.getIndexReader();
 			TermDocs td = _index.termDocs(new Term(LuceneEntity.LUCENE_UUID, id));			
 			if (!td.next()) { throw new NullPointerException(); }
 			int docIndex = td.doc();
-			Entity e = new LuceneEntity(_index.document(docIndex));					
-			_index.close();
+			td.close();
+			LuceneEntity e = new LuceneEntity(this.loaded(_index.document(docIndex, selector)));					
 			return e;
 		} catch (Exception e) {
 			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(searcher);
 		}
 		//return null;
 	}
@@ -141,15 +756,130 @@ public class LuceneDatastoreImpl implements Datastore {
   /** gets a list of JSONObject bas on the parameters in the request */
 	@Override
   public List<Entity> searchEntities(Map<String, String> m) {
+		return this.searchEntities(LuceneResultCache.Key.terms(m, this.getMaxResults()), null);
+	}
+
+	@Override
+	public LuceneQuery createQuery() {
+		return new LuceneQuery(this._filterCache, this._schema);
+	}
+
+	@Override
+	public List<Entity> searchEntities(methostore.Query q) {
+		if (!(q instanceof LuceneQuery)) {
+			throw new IllegalArgumentException("not a query of the Lucene datastore: "+q);
+		}
+		LuceneQuery lq = (LuceneQuery) q;
+		return this.searchEntities(LuceneResultCache.Key.query(lq.toLuceneQuery(), lq.toLuceneSort(), this.getMaxResults()), null);
+	}
+
+	/** returns a query matching all fields/values of the map */
+	static Query toQuery(Map<String, String> m) {
+		BooleanQuery q = new BooleanQuery();
+		for (String val : m.keySet()) {
+			q.add(new BooleanClause(new TermQuery(new Term(val,
+					m.get(val))), Occur.MUST));
+		}
+		return q;
+	}
+
+	@Override
+	public int count(String q) {
 		try {
-			BooleanQuery q = new BooleanQuery();
-			for (String val : m.keySet()) {
-				q.add(new BooleanClause(new TermQuery(new Term(val,
-						m.get(val))), Occur.MUST));
-			}
-			return this.searchEntities(q);
-		} catch (Exception e) {
+			return this.count(
+					new QueryParser(Version.LUCENE_30, "content", this._analyzer)
+					.parse(q));
+		} catch (ParseException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	@Override
+	public int count(Map<String, String> m) {
+		return this.count(toQuery(m));
+	}
+
+	/** counts the matching entities with a hit-count collector, no stored field is loaded */
+	public int count(Query q) {
+		IndexSearcher searcher = this.acquireSearcher();
+		try {
+			TotalHitCountCollector collector = new TotalHitCountCollector();
+			searcher.search(q, collector);
+			return collector.getTotalHits();
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(searcher);
+		}
+	}
+
+	@Override
+	public LuceneAggregation createAggregation() {
+		return new LuceneAggregation();
+	}
+
+	@Override
+	public Aggregation aggregate(methostore.Query q, Aggregation aggregation) {
+		if (!(q instanceof LuceneQuery)) {
+			throw new IllegalArgumentException("not a query of the Lucene datastore: "+q);
+		}
+		return this.aggregate(((LuceneQuery) q).toLuceneQuery(), aggregation);
+	}
+
+	@Override
+	public Aggregation aggregate(String q, Aggregation aggregation) {
+		try {
+			return this.aggregate(
+					new QueryParser(Version.LUCENE_30, "content", this._analyzer)
+					.parse(q), aggregation);
+		} catch (ParseException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	/** computes the aggregation with a single collector pass over the matching documents */
+	public Aggregation aggregate(Query q, Aggregation aggregation) {
+		if (!(aggregation instanceof LuceneAggregation)) {
+			throw new IllegalArgumentException("not an aggregation of the Lucene datastore: "+aggregation);
+		}
+		long start = System.nanoTime();
+		IndexSearcher searcher = this.acquireSearcher();
+		try {
+			LuceneAggregationCollector collector = new LuceneAggregationCollector((LuceneAggregation) aggregation, this._schema);
+			searcher.search(q, collector);
+			collector.finish();
+			this._metrics.operation(Operation.SEARCH, System.nanoTime() - start, 0);
+			return aggregation;
+		} catch (IOException e) {
+			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(searcher);
+		}
+	}
+
+	@Override
+	public int size() {
+		IndexSearcher searcher = this.acquireSearcher();
+		try {
+			return searcher.getIndexReader().numDocs();
+		} finally {
+			this.releaseSearcher(searcher);
+		}
+	}
+
+	@Override
+	public boolean exists(String id) {
+		IndexSearcher searcher = this.acquireSearcher();
+		try {
+			// TermDocs skips deleted documents
+			TermDocs td = searcher.getIndexReader().termDocs(new Term(LuceneEntity.LUCENE_UUID, id));
+			boolean result = td.next();
+			td.close();
+			return result;
+		} catch (IOException e) {
 			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(searcher);
 		}
 	}
 
@@ -158,71 +888,202 @@ public class LuceneDatastoreImpl implements Datastore {
 		return searchEntities(q, "content");
 	}
 
+	@Override
+	public List<Entity> searchEntities(String q, Set<String> properties) {
+		return this.searchEntities(LuceneResultCache.Key.parsed("content", q, this.getMaxResults()), fieldSelector(properties));
+	}
+
+	/** returns a FieldSelector loading only the given properties and the ID */
+	static FieldSelector fieldSelector(Set<String> properties) {
+		Set<String> fieldsToLoad = new HashSet<String>(properties);
+		fieldsToLoad.add(LuceneEntity.LUCENE_UUID);
+		return new SetBasedFieldSelector(fieldsToLoad, Collections.<String>emptySet());
+	}
+
   public List<Entity> searchEntities(String q, String field) {
-    try {
-      return this.searchEntities(
-          new QueryParser(Version.LUCENE_30, field, this._analyzer)
-            .parse(q));
-    } catch (Exception e) {
-      throw new MethostoreException(e);
-    }
+    return this.searchEntities(LuceneResultCache.Key.parsed(field, q, this.getMaxResults()), null);
   }
 
 	/** Subclasses may override. */
 	public int getMaxResults() {
-	   if (System.getProperty("methostore.maxresults")!=null) {
-	     return Integer.parseInt(System.getProperty("methostore.maxresults"));
-	   }
-	   return 500; 
+	   return this._maxResults; 
 	 }
 
+	/** sets the max number of entities returned by searchEntities (default: system property methostore.maxresults or 500) */
+	public LuceneDatastoreImpl setMaxResults(int maxResults) {
+	  if (maxResults < 1) {
+	    throw new IllegalArgumentException();
+	  }
+	  this._maxResults = maxResults;
+	  return this;
+	}
+
+	/** sets the max number of filters of structured queries kept in cache */
+	public LuceneDatastoreImpl setFilterCacheSize(int filterCacheSize) {
+	  this._filterCache.setMaxSize(filterCacheSize);
+	  return this;
+	}
+
+	/** enables the cache of get(id) with the given max number of entities (0 disables it, the default) */
+	public LuceneDatastoreImpl setEntityCacheSize(int entityCacheSize) {
+	  this._entityCache.setMaxSize(entityCacheSize);
+	  return this;
+	}
+
+	/**
+	 * enables the cache of the top documents of repeated searches, bounded by the estimated size of its entries
+	 * (0 disables it, the default), see {@link LuceneResultCache}
+	 */
+	public LuceneDatastoreImpl setResultCacheMaxBytes(long maxBytes) {
+	  this._resultCache.setMaxBytes(maxBytes);
+	  return this;
+	}
+
+	/** returns the cache of searches, with its hit rate */
+	public LuceneResultCache getResultCache() {
+	  return this._resultCache;
+	}
+
+	/** returns the cache of get(id), with its hit/miss/eviction counters */
+	public LuceneEntityCache getEntityCache() {
+	  return this._entityCache;
+	}
+
+	/** sets the number of Documents loaded at once by cursors */
+	public LuceneDatastoreImpl setPageSize(int pageSize) {
+	  if (pageSize < 1) {
+	    throw new IllegalArgumentException();
+	  }
+	  this._pageSize = pageSize;
+	  return this;
+	}
+
 	 public List<Term> terms() throws Exception {
-     IndexReader ir =  IndexReader.open(this._indexWriter, false);
-     TermEnum l = ir.terms();
-     List<Term> res = new LinkedList<Term>();
-     while ((l.next())!=false) {
-       res.add(l.term());
+     IndexSearcher searcher = this.acquireSearcher();
+     try {
+       TermEnum l = searcher.getIndexReader().terms();
+       List<Term> res = new LinkedList<Term>();
+       while ((l.next())!=false) {
+         res.add(l.term());
+       }
+       l.close();
+       return res;
+     } finally {
+       this.releaseSearcher(searcher);
      }
-    return res;  
 	  }
 
 	 
 	public List<Entity> searchEntities(Query q) {
+		return this.searchEntities(LuceneResultCache.Key.query(q, null, this.getMaxResults()), null);
+	}
+
+	/** returns all matching entities with only the given properties (and the ID) */
+	public List<Entity> searchEntities(Query q, Set<String> properties) {
+		return this.searchEntities(LuceneResultCache.Key.query(q, null, this.getMaxResults()), fieldSelector(properties));
+	}
+
+	/**
+	 * returns the top matching entities of the search identified by the key (query, sort and max results),
+	 * selector null means all properties. A repeated search on the same searcher is served by the result cache.
+	 */
+	private List<Entity> searchEntities(LuceneResultCache.Key key, FieldSelector selector) {
+		long start = System.nanoTime();
+		IndexSearcher indexSearcher = this.acquireSearcher();
 		try {
 
-			IndexReader ir =  IndexReader.open(this._indexWriter, false);
-			IndexSearcher indexSearcher = new IndexSearcher(ir);
-			TopDocs topdocs = indexSearcher.search(q, this.getMaxResults());
+			IndexReader ir = indexSearcher.getIndexReader();
+			boolean cacheEnabled = this._resultCache.isEnabled();
+			ScoreDoc[] hits = cacheEnabled ? this._resultCache.get(key, ir) : null;
+			if (hits == null) {
+				// the query is only parsed or built on a miss
+				Query q = key.toLuceneQuery(this._analyzer);
+				TopDocs topdocs = key.getSort() == null
+						? indexSearcher.search(q, key.getMaxResults())
+						: indexSearcher.search(q, null, key.getMaxResults(), key.getSort());
+				hits = topdocs.scoreDocs;
+				if (cacheEnabled) {
+					this._resultCache.put(key, ir, hits);
+				}
+			}
 			
 			List<Entity> l = new ArrayList<Entity>();
 
-			for (ScoreDoc s : topdocs.scoreDocs) {
-				LuceneEntity e = new FoundLuceneEntity(ir.document(s.doc), s);
-				
-				// for backward compatibility
-				if (e.getDocument().get(LuceneEntity.LUCENE_UUID) == null) {
-					e.setProperty(LuceneEntity.LUCENE_UUID, "___"+s.doc);
-				}
-				
-				l.add(e);
+			for (ScoreDoc s : hits) {
+				l.add(this.toEntity(ir, s, selector));
 			}
 			
 			//System.out.println(q.toString());
 			//System.out.println("results: "+l.size());
-			// Note that the underlying IndexReader is not closed, if IndexSearcher was constructed with IndexSearcher(IndexReader r).
-			indexSearcher.close();
-			ir.close();
 
+			this._metrics.operation(Operation.SEARCH, System.nanoTime() - start, l.size());
 			return l;
 		} catch (Exception e) {
 			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(indexSearcher);
 		}
 	}
 
+
+	/** loads a search hit, selector null means all properties */
+	LuceneEntity toEntity(IndexReader ir, ScoreDoc s, FieldSelector selector) throws IOException {
+		LuceneEntity e = new FoundLuceneEntity(this.loaded(ir.document(s.doc, selector)), s);
+		
+		// for backward compatibility
+		if (e.getDocument().get(LuceneEntity.LUCENE_UUID) == null) {
+			e.setProperty(LuceneEntity.LUCENE_UUID, "___"+s.doc);
+		}
+		return e;
+	}
+
+	@Override
+	public EntityCursor iterateEntities(String q) {
+		return iterateEntities(q, "content");
+	}
+
+	public EntityCursor iterateEntities(String q, String field) {
+		try {
+			return this.iterateEntities(
+					new QueryParser(Version.LUCENE_30, field, this._analyzer)
+					.parse(q));
+		} catch (ParseException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	/** returns a cursor over all matching entities, paginated with searchAfter */
+	public EntityCursor iterateEntities(Query q) {
+		return new LuceneEntityCursor(this, q, this._pageSize);
+	}
+
+	@Override
+	public EntityCursor iterateAllEntities() {
+		return new LuceneEntityCursor(this, null, this._pageSize);
+	}
 		
 	public void close() {
 		try {
+			// the pending background writes are completed first
+			for (LuceneAsyncWriter writer : this._asyncWriters) {
+				writer.close();
+			}
+			synchronized (this) {
+				if (this._maintenance != null) {
+					this._maintenance.shutdown();
+				}
+			}
+			if (this._wal != null) {
+				this._wal.stop();
+			}
+			this._searcherManager.close();
+			// the user data (schema, change sequence) of the last commit must be up to date
+			this.commit();
 			this._indexWriter.close();
+			this._changeFeed.close();
+			if (this._wal != null) {
+				this._wal.close();
+			}
 		} catch (Exception e) {
 			throw new MethostoreException(e);
 		
@@ -231,18 +1092,22 @@ public class LuceneDatastoreImpl implements Datastore {
 
 	@Override
 	public List<Entity> getAllEntities() {
+		long start = System.nanoTime();
+		IndexSearcher searcher = this.acquireSearcher();
 		try {
-		IndexReader indexReader =  IndexReader.open(this._indexWriter, false);
+		IndexReader indexReader = searcher.getIndexReader();
 		List<Entity> l = new ArrayList<Entity>();
 		for (int i = 0; i<indexReader.maxDoc(); i++) {
 			if (!indexReader.isDeleted(i)) {
-					l.add(new LuceneEntity(indexReader.document(i)));
+					l.add(new LuceneEntity(this.loaded(indexReader.document(i))));
 			}
 		}
-		indexReader.close();
+		this._metrics.operation(Operation.SEARCH, System.nanoTime() - start, l.size());
 		return l;
 		} catch (Exception e) {
 			throw new MethostoreException(e);
+		} finally {
+			this.releaseSearcher(searcher);
 		}
 	}
 
@@ -251,11 +1116,119 @@ public class LuceneDatastoreImpl implements Datastore {
 	 */
 	@Override
 	public LuceneDatastoreImpl delete(Entity e) {
+		long start = System.nanoTime();
+		this.awaitDurable(this.remove(e));
+		this._metrics.operation(Operation.DELETE, System.nanoTime() - start, 1);
+		return this;
+	}
+
+	/** deletes an Entity without waiting for the deletion to be committed (or fsynced in the write-ahead log) */
+	public LuceneDatastoreImpl deleteFast(Entity e) {
+		long start = System.nanoTime();
+		this.remove(e);
+		this._metrics.operation(Operation.DELETE, System.nanoTime() - start, 1);
+		return this;
+	}
+
+	/** deletes all entities with a single commit */
+	@Override
+	public LuceneDatastoreImpl deleteAll(Collection<String> ids) {
+		if (ids.isEmpty()) {
+			return this;
+		}
+		long start = System.nanoTime();
+		this.awaitDurable(this.removeAll(ids));
+		this._metrics.operation(Operation.DELETE, System.nanoTime() - start, ids.size());
+		return this;
+	}
+
+	/** deletes the entities from the IndexWriter and returns the sequence number for the group committer */
+	long removeAll(Collection<String> ids) {
 		try {
-			String id = e.getId();
-			this._indexWriter.deleteDocuments(new Term(LuceneEntity.LUCENE_UUID, id));
-			this._indexWriter.commit();
+			// the deletes are buffered by the IndexWriter, deleting the IDs one by one costs little more
+			this._commitGate.readLock().lock();
+			try {
+				for (String id : ids) {
+					synchronized (this.writeStripe(id)) {
+						this._indexWriter.deleteDocuments(new Term(LuceneEntity.LUCENE_UUID, id));
+						this._changeFeed.delete(id);
+						if (this._wal != null) {
+							this._wal.appendDelete(id);
+						}
+					}
+				}
+			} finally {
+				this._commitGate.readLock().unlock();
+			}
+			long seq = this._groupCommitter.written();
+			for (String id : ids) {
+				this._entityCache.invalidate(id);
+			}
+			return seq;
+		} catch (IOException ex) {
+			throw new MethostoreException(ex);
+		}
+	}
+
+	@Override
+	public LuceneDatastoreImpl deleteByQuery(String q) {
+		return deleteByQuery(q, "content");
+	}
+
+	public LuceneDatastoreImpl deleteByQuery(String q, String field) {
+		try {
+			// the change feed gets the query as given, which its consumers can parse again
+			return this.deleteByQuery(
+					new QueryParser(Version.LUCENE_30, field, this._analyzer)
+					.parse(q), q, field);
+		} catch (ParseException e) {
+			throw new MethostoreException(e);
+		}
+	}
+
+	/** deletes all matching entities with a single commit, no Document is loaded */
+	public LuceneDatastoreImpl deleteByQuery(Query q) {
+		return this.deleteByQuery(q, q.toString(), null);
+	}
+
+	private LuceneDatastoreImpl deleteByQuery(Query q, String fed, String field) {
+		try {
+			long start = System.nanoTime();
+			this._commitGate.readLock().lock();
+			try {
+				this._indexWriter.deleteDocuments(q);
+				this._changeFeed.deleteByQuery(fed, field);
+			} finally {
+				this._commitGate.readLock().unlock();
+			}
+			long seq = this._groupCommitter.written();
+			this._entityCache.clear();
+			this._groupCommitter.awaitDurable(seq);
+			this._metrics.operation(Operation.DELETE, System.nanoTime() - start, 0);
 			return this;
+		} catch (IOException ex) {
+			throw new MethostoreException(ex);
+		}
+	}
+
+	long remove(Entity e) {
+		try {
+			String id = e.getId();
+			this._commitGate.readLock().lock();
+			try {
+				synchronized (this.writeStripe(id)) {
+					this._indexWriter.deleteDocuments(new Term(LuceneEntity.LUCENE_UUID, id));
+					this._changeFeed.delete(id);
+					if (this._wal != null) {
+						this._wal.appendDelete(id);
+					}
+				}
+			} finally {
+				this._commitGate.readLock().unlock();
+			}
+			long seq = this._groupCommitter.written();
+			this._entityCache.invalidate(id);
+			return seq;
 		} catch (Exception ex) {
 			throw new MethostoreException(ex);
 		}
@@ -283,9 +1256,13 @@ public class LuceneDatastoreImpl implements Datastore {
     return this;
   }
 
+  /**
+   * commits and compacts the index into a single segment in the background (see {@link #getMaintenance()}),
+   * it does not block the caller for the merge anymore
+   */
   public void toDisk() throws   Exception {
-    this._indexWriter.optimize();
-    this._indexWriter.commit();    
+    this.commit();
+    this.getMaintenance().forceMerge(1);
   }
 
 
@@ -0,0 +1,216 @@
+package methostore.impl.lucene;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Tunes the storage of a Lucene datastore, for instance:
+ * <pre>
+ * LuceneDatastoreFactory.createDatastore("/data/store",
+ *   new LuceneDatastoreOptions().setDirectoryType(DirectoryType.MMAP).setNRTCaching(5, 60).setRAMBufferSizeMB(64));
+ * </pre>
+ * A null merge policy or merge scheduler means the Lucene default.
+ * Merge policies and schedulers are bound to one IndexWriter: the same options with a merge
+ * policy or a merge scheduler must not be used for several datastores.
+ */
+public class LuceneDatastoreOptions {
+
+  public static enum DirectoryType {
+    /** the best directory for the platform (MMap on 64-bit JVMs) */
+    AUTO,
+    /** serializes the reads, kept for compatibility */
+    SIMPLE_FS,
+    /** positional reads, concurrent searches do not block each other (except on Windows) */
+    NIO_FS,
+    /** memory-mapped files, the fastest on 64-bit JVMs */
+    MMAP,
+    /** everything in the heap (the directory argument is ignored) */
+    RAM
+  }
+
+  private DirectoryType _directoryType = DirectoryType.AUTO;
+
+  /** 0 disables the NRT caching */
+  private double _nrtMaxMergeSizeMB = 0;
+  private double _nrtMaxCachedMB = 0;
+
+  private double _ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+  private int _maxBufferedDocs = IndexWriterConfig.DISABLE_AUTO_FLUSH;
+  private int _maxThreadStates = IndexWriterConfig.DEFAULT_MAX_THREAD_STATES;
+  private MergePolicy _mergePolicy = null;
+  private MergeScheduler _mergeScheduler = null;
+  private String _changeLog = null;
+  private String _writeAheadLog = null;
+  private long _walSyncIntervalMillis = 100;
+  private long _walCommitIntervalMillis = 60 * 1000;
+
+  public LuceneDatastoreOptions setDirectoryType(DirectoryType directoryType) {
+    this._directoryType = directoryType;
+    return this;
+  }
+
+  public DirectoryType getDirectoryType() {
+    return this._directoryType;
+  }
+
+  /**
+   * keeps the small segments just flushed or merged in RAM (segments smaller than maxMergeSizeMB,
+   * at most maxCachedMB in total), which makes frequent reopenings cheap
+   */
+  public LuceneDatastoreOptions setNRTCaching(double maxMergeSizeMB, double maxCachedMB) {
+    if (maxMergeSizeMB < 0 || maxCachedMB < 0) {
+      throw new IllegalArgumentException();
+    }
+    this._nrtMaxMergeSizeMB = maxMergeSizeMB;
+    this._nrtMaxCachedMB = maxCachedMB;
+    return this;
+  }
+
+  /** the RAM used to buffer documents before flushing a segment */
+  public LuceneDatastoreOptions setRAMBufferSizeMB(double ramBufferSizeMB) {
+    this._ramBufferSizeMB = ramBufferSizeMB;
+    return this;
+  }
+
+  /** flushes a segment every maxBufferedDocs documents (disabled by default, the RAM buffer decides) */
+  public LuceneDatastoreOptions setMaxBufferedDocs(int maxBufferedDocs) {
+    this._maxBufferedDocs = maxBufferedDocs;
+    return this;
+  }
+
+  /** the max number of threads indexing documents concurrently */
+  public LuceneDatastoreOptions setMaxThreadStates(int maxThreadStates) {
+    this._maxThreadStates = maxThreadStates;
+    return this;
+  }
+
+  public LuceneDatastoreOptions setMergePolicy(MergePolicy mergePolicy) {
+    this._mergePolicy = mergePolicy;
+    return this;
+  }
+
+  /** note that the NRT caching comes with its own merge scheduler, unless one is set here */
+  public LuceneDatastoreOptions setMergeScheduler(MergeScheduler mergeScheduler) {
+    this._mergeScheduler = mergeScheduler;
+    return this;
+  }
+
+  /**
+   * keeps the changes of the datastore in an append-only local file, see {@link LuceneChangeFeed} (null, the default, disables it).
+   * The shards of a sharded datastore each have their own file, suffixed with .shard-0, .shard-1...
+   */
+  public LuceneDatastoreOptions setChangeLog(String changeLogFile) {
+    this._changeLog = changeLogFile;
+    return this;
+  }
+
+  public String getChangeLog() {
+    return this._changeLog;
+  }
+
+  /**
+   * makes the writes durable in a write-ahead log in the given directory instead of a Lucene commit per write,
+   * see {@link LuceneWriteAheadLog} (null, the default, disables it).
+   * put and delete wait for a batched fsync of the log, the writes of putFast are on disk after at most
+   * syncIntervalMillis, and the index is committed in the background every commitIntervalMillis (0 disables both).
+   * The shards of a sharded datastore each log in their own subdirectory shard-0, shard-1...
+   */
+  public LuceneDatastoreOptions setWriteAheadLog(String directory, long syncIntervalMillis, long commitIntervalMillis) {
+    if (syncIntervalMillis < 0 || commitIntervalMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    this._writeAheadLog = directory;
+    this._walSyncIntervalMillis = syncIntervalMillis;
+    this._walCommitIntervalMillis = commitIntervalMillis;
+    return this;
+  }
+
+  /** a write-ahead log fsynced every 100 ms and committed every minute */
+  public LuceneDatastoreOptions setWriteAheadLog(String directory) {
+    return this.setWriteAheadLog(directory, 100, 60 * 1000);
+  }
+
+  public String getWriteAheadLog() {
+    return this._writeAheadLog;
+  }
+
+  public long getWALSyncIntervalMillis() {
+    return this._walSyncIntervalMillis;
+  }
+
+  public long getWALCommitIntervalMillis() {
+    return this._walCommitIntervalMillis;
+  }
+
+  /** returns a copy of the options for the shard at the given position, whose logs are not shared with the other shards */
+  LuceneDatastoreOptions forShard(int shard) {
+    LuceneDatastoreOptions o = new LuceneDatastoreOptions();
+    o._directoryType = this._directoryType;
+    o._nrtMaxMergeSizeMB = this._nrtMaxMergeSizeMB;
+    o._nrtMaxCachedMB = this._nrtMaxCachedMB;
+    o._ramBufferSizeMB = this._ramBufferSizeMB;
+    o._maxBufferedDocs = this._maxBufferedDocs;
+    o._maxThreadStates = this._maxThreadStates;
+    o._mergePolicy = this._mergePolicy;
+    o._mergeScheduler = this._mergeScheduler;
+    if (this._changeLog != null) {
+      o._changeLog = this._changeLog+".shard-"+shard;
+    }
+    if (this._writeAheadLog != null) {
+      o._writeAheadLog = new File(this._writeAheadLog, "shard-"+shard).getPath();
+    }
+    o._walSyncIntervalMillis = this._walSyncIntervalMillis;
+    o._walCommitIntervalMillis = this._walCommitIntervalMillis;
+    return o;
+  }
+
+  /** opens the directory, datastoreDirectory is ignored for RAM */
+  Directory openDirectory(File datastoreDirectory) throws IOException {
+    Directory dir;
+    switch (this._directoryType) {
+    case SIMPLE_FS: dir = new SimpleFSDirectory(datastoreDirectory); break;
+    case NIO_FS: dir = new NIOFSDirectory(datastoreDirectory); break;
+    case MMAP: dir = new MMapDirectory(datastoreDirectory); break;
+    case RAM: dir = new RAMDirectory(); break;
+    default: dir = FSDirectory.open(datastoreDirectory);
+    }
+    if (this._nrtMaxMergeSizeMB > 0 && this._nrtMaxCachedMB > 0 && this._directoryType != DirectoryType.RAM) {
+      dir = new NRTCachingDirectory(dir, this._nrtMaxMergeSizeMB, this._nrtMaxCachedMB);
+    }
+    return dir;
+  }
+
+  IndexWriterConfig newIndexWriterConfig(Directory dir, Analyzer analyzer) {
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_34, analyzer);
+    // one of both must remain enabled at any time
+    if (this._maxBufferedDocs != IndexWriterConfig.DISABLE_AUTO_FLUSH) {
+      config.setMaxBufferedDocs(this._maxBufferedDocs);
+    }
+    config.setRAMBufferSizeMB(this._ramBufferSizeMB);
+    config.setMaxThreadStates(this._maxThreadStates);
+    if (this._mergePolicy != null) {
+      config.setMergePolicy(this._mergePolicy);
+    }
+    if (this._mergeScheduler != null) {
+      config.setMergeScheduler(this._mergeScheduler);
+    } else if (dir instanceof NRTCachingDirectory) {
+      // so that the merged segments are not cached
+      config.setMergeScheduler(((NRTCachingDirectory) dir).getMergeScheduler());
+    }
+    return config;
+  }
+
+}
@@ -2,6 +2,7 @@ package methostore.impl.lucene;
 
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -9,6 +10,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 
 import methostore.Entity;
+import methostore.impl.lucene.LuceneSchema.Property;
+import methostore.impl.lucene.LuceneSchema.Type;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.KeywordAnalyzer;
@@ -17,6 +20,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Field.TermVector;
 import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.document.NumericField;
 import org.apache.lucene.util.Version;
@@ -24,8 +28,18 @@ import org.apache.lucene.util.Version;
 public class LuceneEntity implements Entity {
 
   public static final String LUCENE_UUID = "_key";
+
+  /** the prefix of the analyzer fields written by previous versions in each document */
+  static final String LEGACY_META_PREFIX = "__meta_";
+
   private final Document _doc;
 
+  /** the schema of the datastore which created this entity, may be null */
+  private LuceneSchema _schema;
+
+  /** the properties set on this instance, they are registered in the schema when the entity is put */
+  private final Map<String, Property> _definitions = new HashMap<String, Property>();
+
   LuceneEntity() {
     String id = java.util.UUID.randomUUID().toString();
     this._doc = new Document();
@@ -37,6 +51,11 @@ public class LuceneEntity implements Entity {
     this._analyzer=  analyzer;
   }
 
+  LuceneEntity(Analyzer analyzer, LuceneSchema schema) {
+    this(analyzer);
+    this._schema = schema;
+  }
+
   
   /** sets the key of the entity */
   private void setKey(String key) {
@@ -67,9 +86,17 @@ public class LuceneEntity implements Entity {
   }
   
   public Entity _setProperty(String name, String value, Analyzer analyzer) {
+    Type type = analyzer instanceof KeywordAnalyzer ? Type.KEYWORD : Type.STRING;
+    return this.setField(this.definition(name, type, analyzer.getClass().getName()), value, analyzer);
+  }
 
-    Field f = new Field(name, value, Store.YES, Index.ANALYZED, Field.TermVector.YES);
-    f.setTokenStream(analyzer.tokenStream(name, new StringReader(value)));
+  private Entity setField(Property p, String value, Analyzer analyzer) {
+    String name = p.getName();
+    Field f = new Field(name, value, p.isStored()?Store.YES:Store.NO, p.isIndexed()?Index.ANALYZED:Index.NO,
+        p.isIndexed()&&p.hasTermVector()?TermVector.YES:TermVector.NO);
+    if (p.isIndexed()) {
+      f.setTokenStream(analyzer.tokenStream(name, new StringReader(value)));
+    }
 
     // contrary to Lucene,  we don't allow to have several properties with the same name
     // calling this method is safe is the property does not exist
@@ -78,13 +105,62 @@ public class LuceneEntity implements Entity {
 
     this._doc.add(f);
     
-    // we also a meta field to keep track of the analyzer used
-    String meta = "__meta_"+name;
-    this._doc.removeField(meta);
-    this._doc.add( new Field(meta, analyzer.getClass().getName(), Store.YES, Index.NOT_ANALYZED));
+    // the analyzer used is recorded once in the schema of the datastore (no more __meta_ field)
     return this;
   }
 
+  /** returns the indexing options of a property set on this entity: the ones of the schema if defined, the defaults otherwise */
+  private Property definition(String name, Type type, String analyzer) {
+    Property p = null;
+    if (this._schema != null && !LUCENE_UUID.equals(name)) {
+      p = this._schema.getProperty(name);
+    }
+    p = (p == null) ? new Property(name, type, analyzer, true, true, false) : p.as(type, analyzer);
+    this._definitions.put(name, p);
+    return p;
+  }
+
+  /** returns the definitions of the properties set on this instance */
+  Collection<Property> definitions() {
+    return this._definitions.values();
+  }
+
+  /**
+   * prepares a document for indexing:
+   * the fields loaded from the index are re-created with the analyzer of the schema,
+   * and the __meta_ fields of previous versions are removed
+   */
+  void applySchema(LuceneSchema schema, Analyzer defaultAnalyzer) {
+    for (Fieldable f : new ArrayList<Fieldable>(this._doc.getFields())) {
+      String name = f.name();
+      if (name.startsWith(LEGACY_META_PREFIX)) {
+        this._doc.removeFields(name);
+        continue;
+      }
+      if (this._definitions.containsKey(name)) {
+        continue;
+      }
+      Property p = schema.getProperty(name);
+      if (p == null) {
+        continue;
+      }
+      if (f instanceof NumericField) {
+        // loaded numeric fields have the default precision step
+        Number value = ((NumericField) f).getNumericValue();
+        if (p.getType()==Type.LONG) {
+          this._definitions.put(name, p);
+          this.setNumericField(p).setLongValue(value.longValue());
+        } else if (p.getType()==Type.DOUBLE) {
+          this._definitions.put(name, p);
+          this.setNumericField(p).setDoubleValue(value.doubleValue());
+        }
+      } else if (p.getType()==Type.STRING || p.getType()==Type.KEYWORD) {
+        this._definitions.put(name, p);
+        this.setField(p, f.stringValue(), schema.analyzer(p, defaultAnalyzer));
+      }
+    }
+  }
+
   public Document getDocument() {
     return this._doc;
   }
@@ -137,17 +213,21 @@ public class LuceneEntity implements Entity {
 
   @Override
   public Entity setPropertyAsLong(String name, long value) {
-    NumericField f = new NumericField(name, Store.YES, true);
-    f.setLongValue(value);
-    this._doc.add(f);
+    this.setNumericField(this.definition(name, Type.LONG, null)).setLongValue(value);
     return this;
   }
 
+  /** replaces the field of a numeric property, its value must be set afterwards */
+  private NumericField setNumericField(Property p) {
+    NumericField f = new NumericField(p.getName(), p.getPrecisionStep(), p.isStored()?Store.YES:Store.NO, p.isIndexed());
+    this._doc.removeField(p.getName());
+    this._doc.add(f);
+    return f;
+  }
+
   @Override
   public Entity setPropertyAsDouble(String name, double value) {
-    NumericField f = new NumericField(name, Store.YES, true);
-    f.setDoubleValue(value);
-    this._doc.add(f);
+    this.setNumericField(this.definition(name, Type.DOUBLE, null)).setDoubleValue(value);
     return this;
   }
 
@@ -0,0 +1,119 @@
+package methostore.impl.lucene;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+
+/**
+ * keeps the most recently read entities, keyed by ID (LRU eviction).
+ *
+ * The cache is disabled by default, see {@link LuceneDatastoreImpl#setEntityCacheSize(int)}.
+ * Entities are stored and returned as copies, so that callers can modify them safely.
+ * Writes invalidate the entries of their entities.
+ */
+public class LuceneEntityCache {
+
+  private volatile int _maxSize;
+
+  /** incremented at each invalidation, so that a concurrent read does not cache an outdated entity */
+  private long _generation = 0;
+
+  private long _hits = 0;
+  private long _misses = 0;
+  private long _evictions = 0;
+
+  private final Map<String, Document> _entities = new LinkedHashMap<String, Document>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Document> eldest) {
+      if (size() > _maxSize) {
+        _evictions++;
+        return true;
+      }
+      return false;
+    }
+  };
+
+  LuceneEntityCache(int maxSize) {
+    setMaxSize(maxSize);
+  }
+
+  synchronized void setMaxSize(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException();
+    }
+    this._maxSize = maxSize;
+    if (maxSize == 0) {
+      _entities.clear();
+    }
+  }
+
+  boolean isEnabled() {
+    return _maxSize > 0;
+  }
+
+  synchronized long generation() {
+    return _generation;
+  }
+
+  /** returns a copy of the cached entity, or null */
+  synchronized LuceneEntity get(String id) {
+    Document doc = _entities.get(id);
+    if (doc == null) {
+      _misses++;
+      return null;
+    }
+    _hits++;
+    return new LuceneEntity(copy(doc));
+  }
+
+  /** caches a copy of the loaded document, unless an invalidation happened since generation */
+  synchronized void put(String id, Document doc, long generation) {
+    if (generation == _generation && _maxSize > 0) {
+      _entities.put(id, copy(doc));
+    }
+  }
+
+  synchronized void invalidate(String id) {
+    _generation++;
+    _entities.remove(id);
+  }
+
+  synchronized void clear() {
+    _generation++;
+    _entities.clear();
+  }
+
+  /** the fields are shared: entities replace their fields but never modify them */
+  private static Document copy(Document doc) {
+    Document result = new Document();
+    for (Fieldable f : doc.getFields()) {
+      result.add(f);
+    }
+    return result;
+  }
+
+  public synchronized long getHits() {
+    return _hits;
+  }
+
+  public synchronized long getMisses() {
+    return _misses;
+  }
+
+  public synchronized long getEvictions() {
+    return _evictions;
+  }
+
+  public synchronized int size() {
+    return _entities.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "entity cache: "+size()+"/"+_maxSize+" entities, "+_hits+" hits, "+_misses+" misses, "+_evictions+" evictions";
+  }
+
+}
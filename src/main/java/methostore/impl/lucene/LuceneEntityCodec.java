@@ -0,0 +1,128 @@
+package methostore.impl.lucene;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import methostore.Datastore;
+import methostore.Entity;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+
+/**
+ * encodes entities as length-prefixed binary records, e.g. for snapshots.
+ *
+ * A record is: int length, int number of properties, then for each property:
+ * a type tag (byte), the name (int length + UTF-8), and the value
+ * (int length + UTF-8 for strings and keywords, 8 bytes for longs and doubles).
+ * Only the stored properties of a loaded entity can be encoded.
+ */
+// this class must remain package visible
+class LuceneEntityCodec {
+
+  static final byte STRING = 1;
+  static final byte KEYWORD = 2;
+  static final byte LONG = 3;
+  static final byte DOUBLE = 4;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private LuceneEntityCodec() {
+  }
+
+  /** writes the record of a document, the schema tells keywords from strings */
+  static void write(DataOutputStream out, Document doc, LuceneSchema schema) throws IOException {
+    // the record is prefixed with its length, it is encoded first
+    int count = 0;
+    ByteArrayOut record = new ByteArrayOut();
+    DataOutputStream rec = new DataOutputStream(record);
+    for (Fieldable f : doc.getFields()) {
+      String name = f.name();
+      if (name.startsWith(LuceneEntity.LEGACY_META_PREFIX)) {
+        continue;
+      }
+      if (f instanceof NumericField) {
+        Number value = ((NumericField) f).getNumericValue();
+        if (value == null) {
+          continue;
+        }
+        if (value instanceof Double || value instanceof Float) {
+          rec.writeByte(DOUBLE);
+          writeString(rec, name);
+          rec.writeDouble(value.doubleValue());
+        } else {
+          rec.writeByte(LONG);
+          writeString(rec, name);
+          rec.writeLong(value.longValue());
+        }
+      } else if (!f.isBinary() && f.stringValue() != null) {
+        LuceneSchema.Property p = schema.getProperty(name);
+        boolean keyword = LuceneEntity.LUCENE_UUID.equals(name) || (p != null && p.getType() == LuceneSchema.Type.KEYWORD);
+        rec.writeByte(keyword ? KEYWORD : STRING);
+        writeString(rec, name);
+        writeString(rec, f.stringValue());
+      } else {
+        continue;
+      }
+      count++;
+    }
+    rec.flush();
+    out.writeInt(4 + record.size());
+    out.writeInt(count);
+    record.writeTo(out);
+  }
+
+  /** reads a record into a new entity of the datastore */
+  static Entity read(ByteBuffer in, Datastore datastore) {
+    int length = in.getInt();
+    if (length < 4 || length > in.remaining()) {
+      throw new MethostoreException("corrupted record of length "+length);
+    }
+    int count = in.getInt();
+    Entity e = datastore.createEntity();
+    for (int i = 0; i < count; i++) {
+      byte type = in.get();
+      String name = readString(in);
+      switch (type) {
+      case STRING: e.setProperty(name, readString(in)); break;
+      case KEYWORD: e.setPropertyAsKeyword(name, readString(in)); break;
+      case LONG: e.setPropertyAsLong(name, in.getLong()); break;
+      case DOUBLE: e.setPropertyAsDouble(name, in.getDouble()); break;
+      default: throw new MethostoreException("unknown type tag "+type+" of property "+name);
+      }
+    }
+    return e;
+  }
+
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0 || length > in.remaining()) {
+      throw new MethostoreException("corrupted string of length "+length);
+    }
+    String s = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+    in.position(in.position() + length);
+    return s;
+  }
+
+  /** a ByteArrayOutputStream exposing its buffer, to avoid copies */
+  static class ByteArrayOut extends ByteArrayOutputStream {
+    ByteArrayOut() {
+      super(256);
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+}
@@ -0,0 +1,125 @@
+package methostore.impl.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import methostore.Entity;
+import methostore.EntityCursor;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * loads the Documents of a point-in-time searcher page by page.
+ * Search results are paginated with searchAfter, so that the memory used stays flat
+ * for deep pages; all entities are paginated on document numbers.
+ */
+// this class must remain package visible
+class LuceneEntityCursor implements EntityCursor {
+
+  private final LuceneDatastoreImpl _datastore;
+  
+  /** null when the cursor is closed */
+  private IndexSearcher _searcher;
+  
+  /** null to iterate over all entities */
+  private final Query _query;
+  
+  private final int _pageSize;
+  
+  private List<Entity> _page = new ArrayList<Entity>();
+  private int _pos = 0;
+  private boolean _lastPage = false;
+
+  /** the last hit of the previous page (queries only) */
+  private ScoreDoc _after = null;
+
+  /** the next document number to load (all entities only) */
+  private int _nextDoc = 0;
+
+  LuceneEntityCursor(LuceneDatastoreImpl datastore, Query query, int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this._datastore = datastore;
+    this._query = query;
+    this._pageSize = pageSize;
+    this._searcher = datastore.acquireSearcher();
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (_pos < _page.size()) {
+      return true;
+    }
+    if (_searcher == null) {
+      return false;
+    }
+    if (_lastPage) {
+      close();
+      return false;
+    }
+    try {
+      loadNextPage();
+    } catch (IOException e) {
+      close();
+      throw new MethostoreException(e);
+    }
+    if (_page.isEmpty()) {
+      close();
+      return false;
+    }
+    return true;
+  }
+
+  private void loadNextPage() throws IOException {
+    _page = new ArrayList<Entity>(_pageSize);
+    _pos = 0;
+    IndexReader ir = _searcher.getIndexReader();
+    if (_query == null) {
+      int maxDoc = ir.maxDoc();
+      while (_nextDoc < maxDoc && _page.size() < _pageSize) {
+        if (!ir.isDeleted(_nextDoc)) {
+          _page.add(new LuceneEntity(_datastore.loaded(ir.document(_nextDoc))));
+        }
+        _nextDoc++;
+      }
+      _lastPage = _nextDoc >= maxDoc;
+    } else {
+      TopDocs topdocs = _searcher.searchAfter(_after, _query, _pageSize);
+      for (ScoreDoc s : topdocs.scoreDocs) {
+        _page.add(_datastore.toEntity(ir, s, null));
+        _after = s;
+      }
+      _lastPage = topdocs.scoreDocs.length < _pageSize;
+    }
+  }
+
+  @Override
+  public Entity next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return _page.get(_pos++);
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() {
+    if (_searcher != null) {
+      IndexSearcher searcher = _searcher;
+      _searcher = null;
+      _datastore.releaseSearcher(searcher);
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+package methostore.impl.lucene;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * keeps the most recently used term filters, so that repeated filters are served
+ * from per-segment bitsets instead of being evaluated again.
+ * Deletions are applied on the fly, so that the bitsets survive the reopening of the searcher.
+ */
+// this class must remain package visible
+class LuceneFilterCache {
+
+  private int _maxSize;
+
+  private final Map<Term, Filter> _filters = new LinkedHashMap<Term, Filter>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Term, Filter> eldest) {
+      return size() > _maxSize;
+    }
+  };
+
+  LuceneFilterCache(int maxSize) {
+    setMaxSize(maxSize);
+  }
+
+  synchronized void setMaxSize(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException();
+    }
+    this._maxSize = maxSize;
+  }
+
+  /** returns a caching filter matching the documents containing the term */
+  synchronized Filter get(Term term) {
+    Filter f = _filters.get(term);
+    if (f == null) {
+      f = new CachingWrapperFilter(new QueryWrapperFilter(new TermQuery(term)), CachingWrapperFilter.DeletesMode.DYNAMIC);
+      _filters.put(term, f);
+    }
+    return f;
+  }
+
+  synchronized int size() {
+    return _filters.size();
+  }
+
+}
@@ -0,0 +1,288 @@
+package methostore.impl.lucene;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Compacts the index of a datastore in the background, without stalling reads and writes.
+ *
+ * A force merge is done in bounded passes (each pass at most halves the number of segments),
+ * and each pass is committed, so that the disk space of the merged segments is released early.
+ * After each pass, the service sleeps long enough to respect the I/O rate limit
+ * (Lucene 3.6 cannot throttle the merges themselves), and passes only start within the maintenance window.
+ *
+ * Instances are obtained with {@link LuceneDatastoreImpl#getMaintenance()}.
+ */
+public class LuceneMaintenance {
+
+  public static enum State { IDLE, WAITING_FOR_WINDOW, MERGING, DONE, CANCELLED, FAILED }
+
+  private final LuceneDatastoreImpl _datastore;
+
+  private ExecutorService _executor = null;
+
+  /** 0 means unlimited */
+  private volatile long _maxBytesPerSecond = 0;
+
+  /** the hours of the maintenance window, equal hours means always */
+  private volatile int _windowStartHour = 0;
+  private volatile int _windowEndHour = 0;
+
+  private volatile boolean _cancelled = false;
+
+  // the progress of the current task
+  private volatile State _state = State.IDLE;
+  private volatile String _task = "";
+  private volatile int _passes = 0;
+  private volatile int _initialSegments = 0;
+  private volatile int _segments = 0;
+  private volatile int _targetSegments = 0;
+  private volatile int _deletedDocs = 0;
+  private volatile long _bytesWritten = 0;
+  private volatile Exception _error = null;
+
+  LuceneMaintenance(LuceneDatastoreImpl datastore) {
+    this._datastore = datastore;
+  }
+
+  /** limits the average rate of the bytes written by the merges, 0 for unlimited */
+  public LuceneMaintenance setMaxBytesPerSecond(long maxBytesPerSecond) {
+    if (maxBytesPerSecond < 0) {
+      throw new IllegalArgumentException();
+    }
+    this._maxBytesPerSecond = maxBytesPerSecond;
+    return this;
+  }
+
+  /** restricts the maintenance to the hours [startHour, endHour[ (e.g. 22, 5), equal hours mean always */
+  public LuceneMaintenance setWindow(int startHour, int endHour) {
+    if (startHour < 0 || startHour > 23 || endHour < 0 || endHour > 23) {
+      throw new IllegalArgumentException();
+    }
+    this._windowStartHour = startHour;
+    this._windowEndHour = endHour;
+    return this;
+  }
+
+  /** merges the index down to at most maxSegments segments in the background */
+  public synchronized Future<State> forceMerge(final int maxSegments) {
+    if (maxSegments < 1) {
+      throw new IllegalArgumentException();
+    }
+    return submit(new Callable<State>() {
+      @Override
+      public State call() throws Exception {
+        return doForceMerge(maxSegments);
+      }
+    });
+  }
+
+  /** merges away the deleted documents in the background */
+  public synchronized Future<State> expungeDeletes() {
+    return submit(new Callable<State>() {
+      @Override
+      public State call() throws Exception {
+        return doExpungeDeletes();
+      }
+    });
+  }
+
+  /** stops the current task after its current pass, and the waiting ones */
+  public void cancel() {
+    _cancelled = true;
+  }
+
+  private Future<State> submit(final Callable<State> task) {
+    if (_executor == null) {
+      _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "methostore-maintenance");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+    }
+    _cancelled = false;
+    return _executor.submit(new Callable<State>() {
+      @Override
+      public State call() throws Exception {
+        try {
+          _error = null;
+          _passes = 0;
+          _bytesWritten = 0;
+          _state = task.call();
+        } catch (Exception e) {
+          _error = e;
+          _state = State.FAILED;
+        }
+        return _state;
+      }
+    });
+  }
+
+  private State doForceMerge(int maxSegments) throws Exception {
+    _task = "forceMerge("+maxSegments+")";
+    _targetSegments = maxSegments;
+    updateStats();
+    _initialSegments = _segments;
+    while (_segments > maxSegments) {
+      if (!awaitWindow()) {
+        return State.CANCELLED;
+      }
+      _state = State.MERGING;
+      // a bounded pass, so that the I/O can be throttled and the space released
+      final int next = Math.max(maxSegments, _segments / 2);
+      int before = _segments;
+      pass(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          _datastore.getIndexWriter().forceMerge(next, true);
+          return null;
+        }
+      });
+      if (_segments >= before) {
+        // concurrent writes create segments as fast as we merge them: the target is not met (FAILED)
+        throw new MethostoreException("forceMerge made no progress: "+_segments+" segments, target "+maxSegments);
+      }
+    }
+    return State.DONE;
+  }
+
+  private State doExpungeDeletes() throws Exception {
+    _task = "expungeDeletes";
+    _targetSegments = 0;
+    updateStats();
+    _initialSegments = _segments;
+    if (_deletedDocs == 0) {
+      return State.DONE;
+    }
+    if (!awaitWindow()) {
+      return State.CANCELLED;
+    }
+    _state = State.MERGING;
+    pass(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        _datastore.getIndexWriter().forceMergeDeletes(true);
+        return null;
+      }
+    });
+    return State.DONE;
+  }
+
+  /** runs a merge pass, commits it and sleeps according to the rate limit */
+  private void pass(Callable<Void> merge) throws Exception {
+    long start = System.currentTimeMillis();
+    Directory dir = _datastore.getIndexWriter().getDirectory();
+    Set<String> before = files(dir);
+    merge.call();
+    _datastore.commit();
+    long bytes = 0;
+    for (String f : files(dir)) {
+      if (!before.contains(f)) {
+        try {
+          bytes += dir.fileLength(f);
+        } catch (IOException e) {
+          // the file was already merged away
+        }
+      }
+    }
+    _bytesWritten += bytes;
+    _passes++;
+    updateStats();
+    long rate = _maxBytesPerSecond;
+    if (rate > 0) {
+      long sleep = bytes * 1000 / rate - (System.currentTimeMillis() - start);
+      if (sleep > 0) {
+        Thread.sleep(sleep);
+      }
+    }
+  }
+
+  private static Set<String> files(Directory dir) throws IOException {
+    Set<String> files = new HashSet<String>();
+    for (String f : dir.listAll()) {
+      files.add(f);
+    }
+    return files;
+  }
+
+  /** waits for the maintenance window, returns false if cancelled */
+  private boolean awaitWindow() throws InterruptedException {
+    while (!inWindow()) {
+      if (_cancelled) {
+        return false;
+      }
+      _state = State.WAITING_FOR_WINDOW;
+      Thread.sleep(60 * 1000);
+    }
+    return !_cancelled;
+  }
+
+  private boolean inWindow() {
+    int start = _windowStartHour, end = _windowEndHour;
+    if (start == end) {
+      return true;
+    }
+    int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+    return start < end ? (hour >= start && hour < end) : (hour >= start || hour < end);
+  }
+
+  /** counts the segments and deletions with a fresh reader, the shared searcher may be older */
+  private void updateStats() throws IOException {
+    IndexReader r = IndexReader.open(_datastore.getIndexWriter(), false);
+    try {
+      IndexReader[] segments = r.getSequentialSubReaders();
+      _segments = segments == null ? 1 : segments.length;
+      _deletedDocs = r.numDeletedDocs();
+    } finally {
+      r.close();
+    }
+  }
+
+  public State getState() {
+    return _state;
+  }
+
+  /** returns the error of the last task, null if none */
+  public Exception getError() {
+    return _error;
+  }
+
+  public int getSegmentCount() {
+    return _segments;
+  }
+
+  public long getBytesWritten() {
+    return _bytesWritten;
+  }
+
+  /** returns a human-readable progress report */
+  public String getProgress() {
+    return _task+" "+_state+": "+_passes+" passes, segments "+_initialSegments+" -> "+_segments
+        +(_targetSegments>0?" (target "+_targetSegments+")":"")
+        +", "+_deletedDocs+" deleted docs, "+_bytesWritten+" bytes written"
+        +(_error!=null?", error: "+_error:"");
+  }
+
+  synchronized void shutdown() {
+    _cancelled = true;
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+}
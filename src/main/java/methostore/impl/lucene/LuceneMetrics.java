@@ -0,0 +1,214 @@
+package methostore.impl.lucene;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the measures of a datastore in memory, without locks:
+ * <pre>
+ * LuceneMetrics metrics = new LuceneMetrics();
+ * datastore.setMetricsListener(metrics);
+ * ...
+ * System.out.println(metrics.dump());
+ * </pre>
+ * Latencies and sizes are recorded in log-linear histograms (8 buckets per power of 2),
+ * so percentiles are accurate to 12.5%. The same instance may be shared by several datastores (e.g. shards).
+ */
+public class LuceneMetrics implements LuceneMetricsListener {
+
+  /** a lock-free histogram of positive values */
+  public static class Histogram {
+
+    // values below 8 have their own bucket, then 8 buckets per power of 2
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BITS) * SUB_BUCKETS);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      _buckets.incrementAndGet(bucket(value));
+      _count.incrementAndGet();
+      _sum.addAndGet(value);
+      long max = _max.get();
+      while (value > max && !_max.compareAndSet(max, value)) {
+        max = _max.get();
+      }
+    }
+
+    static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exp = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return SUB_BUCKETS + (exp - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /** the greatest value of a bucket */
+    static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exp = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+      long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+      long width = 1L << (exp - SUB_BITS);
+      return ((SUB_BUCKETS + sub) << (exp - SUB_BITS)) + width - 1;
+    }
+
+    public long getCount() {
+      return _count.get();
+    }
+
+    public long getSum() {
+      return _sum.get();
+    }
+
+    public long getMax() {
+      return _max.get();
+    }
+
+    public double getMean() {
+      long count = _count.get();
+      return count == 0 ? 0 : (double) _sum.get() / count;
+    }
+
+    /** returns the value below which the given fraction of the values fall (e.g. 0.99), 0 if empty */
+    public long getPercentile(double fraction) {
+      if (fraction < 0 || fraction > 1) {
+        throw new IllegalArgumentException();
+      }
+      // the buckets are read one by one, concurrent records may be partially visible
+      long total = 0;
+      for (int i = 0; i < _buckets.length(); i++) {
+        total += _buckets.get(i);
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(fraction * total);
+      long seen = 0;
+      for (int i = 0; i < _buckets.length(); i++) {
+        seen += _buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          return Math.min(upperBound(i), _max.get());
+        }
+      }
+      return _max.get();
+    }
+  }
+
+  private final Histogram[] _latencies = new Histogram[Operation.values().length];
+  private final Histogram[] _sizes = new Histogram[Operation.values().length];
+  private final AtomicLong _storedBytesLoaded = new AtomicLong();
+  private final AtomicLong _entitiesLoaded = new AtomicLong();
+
+  // the last index stats
+  private volatile int _segments = 0;
+  private volatile int _deletedDocs = 0;
+  private volatile long _ramBufferBytes = 0;
+
+  public LuceneMetrics() {
+    for (int i = 0; i < _latencies.length; i++) {
+      _latencies[i] = new Histogram();
+      _sizes[i] = new Histogram();
+    }
+  }
+
+  @Override
+  public void operation(Operation operation, long nanos, int size) {
+    _latencies[operation.ordinal()].record(nanos);
+    _sizes[operation.ordinal()].record(size);
+  }
+
+  @Override
+  public void storedBytesLoaded(long bytes) {
+    _storedBytesLoaded.addAndGet(bytes);
+    _entitiesLoaded.incrementAndGet();
+  }
+
+  @Override
+  public void indexStats(int segments, int deletedDocs, long ramBufferBytes) {
+    _segments = segments;
+    _deletedDocs = deletedDocs;
+    _ramBufferBytes = ramBufferBytes;
+  }
+
+  /** returns the histogram of the latencies of an operation, in nanoseconds */
+  public Histogram getLatencies(Operation operation) {
+    return _latencies[operation.ordinal()];
+  }
+
+  /** returns the histogram of the sizes of an operation (number of entities) */
+  public Histogram getSizes(Operation operation) {
+    return _sizes[operation.ordinal()];
+  }
+
+  public long getCount(Operation operation) {
+    return _latencies[operation.ordinal()].getCount();
+  }
+
+  public long getStoredBytesLoaded() {
+    return _storedBytesLoaded.get();
+  }
+
+  public long getEntitiesLoaded() {
+    return _entitiesLoaded.get();
+  }
+
+  public int getSegmentCount() {
+    return _segments;
+  }
+
+  public int getDeletedDocs() {
+    return _deletedDocs;
+  }
+
+  public long getRAMBufferBytes() {
+    return _ramBufferBytes;
+  }
+
+  /** returns a human-readable report of all measures, latencies are in microseconds */
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+    for (Operation op : Operation.values()) {
+      Histogram l = getLatencies(op), s = getSizes(op);
+      sb.append(op.name().toLowerCase()).append(": count=").append(l.getCount());
+      if (l.getCount() > 0) {
+        sb.append(", latency us mean=").append(micros((long) l.getMean()))
+          .append(" p50=").append(micros(l.getPercentile(0.5)))
+          .append(" p90=").append(micros(l.getPercentile(0.9)))
+          .append(" p99=").append(micros(l.getPercentile(0.99)))
+          .append(" p999=").append(micros(l.getPercentile(0.999)))
+          .append(" max=").append(micros(l.getMax()));
+        if (s.getMax() > 0) {
+          sb.append(", size mean=").append(Math.round(s.getMean()))
+            .append(" p99=").append(s.getPercentile(0.99))
+            .append(" max=").append(s.getMax());
+        }
+      }
+      sb.append('\n');
+    }
+    sb.append("stored fields loaded: ").append(getEntitiesLoaded()).append(" entities, ")
+      .append(getStoredBytesLoaded()).append(" bytes\n");
+    sb.append("index: ").append(_segments).append(" segments, ").append(_deletedDocs).append(" deleted docs, ")
+      .append(_ramBufferBytes).append(" bytes in RAM buffer\n");
+    return sb.toString();
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  @Override
+  public String toString() {
+    return dump();
+  }
+
+}
@@ -0,0 +1,53 @@
+package methostore.impl.lucene;
+
+/**
+ * Receives the measures of the operations of a datastore, see {@link LuceneDatastoreImpl#setMetricsListener(LuceneMetricsListener)}.
+ *
+ * Methods are called synchronously by the threads doing the operations, they must be fast and thread-safe.
+ * Only the successful operations are reported.
+ * {@link LuceneMetrics} keeps them in memory.
+ */
+public interface LuceneMetricsListener {
+
+  public static enum Operation {
+    /** get, getAll (size: the number of entities found) */
+    GET,
+    /** put, putFast, putAll (size: the number of entities) */
+    PUT,
+    COMMIT,
+    /** searchEntities, getAllEntities (size: the number of entities returned) */
+    SEARCH,
+    /** delete, deleteFast, deleteAll (size: the number of IDs), deleteByQuery (size: 0) */
+    DELETE,
+    /** the reopening of the shared searcher after writes */
+    REOPEN
+  }
+
+  /** the default listener, does nothing */
+  public static final LuceneMetricsListener NONE = new LuceneMetricsListener() {
+    @Override
+    public void operation(Operation operation, long nanos, int size) {
+    }
+
+    @Override
+    public void storedBytesLoaded(long bytes) {
+    }
+
+    @Override
+    public void indexStats(int segments, int deletedDocs, long ramBufferBytes) {
+    }
+  };
+
+  /** an operation took nanos, size is the number of entities, see {@link Operation} */
+  public void operation(Operation operation, long nanos, int size);
+
+  /** the stored fields of an entity were loaded (UTF-8 size of the values) */
+  public void storedBytesLoaded(long bytes);
+
+  /**
+   * the state of the index after each reopening: the number of segments,
+   * the number of deleted documents not merged away yet, and the RAM used by the buffered writes
+   */
+  public void indexStats(int segments, int deletedDocs, long ramBufferBytes);
+
+}
@@ -0,0 +1,161 @@
+package methostore.impl.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import methostore.Query;
+import methostore.impl.lucene.LuceneSchema.Property;
+import methostore.impl.lucene.LuceneSchema.Type;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * builds a Lucene query directly, without query parsing.
+ * Instances are obtained with {@link LuceneDatastoreImpl#createQuery()}.
+ */
+public class LuceneQuery implements Query {
+
+  private final LuceneFilterCache _filterCache;
+
+  /** gives the precision step and the type of numeric properties */
+  private final LuceneSchema _schema;
+
+  private final BooleanQuery _query = new BooleanQuery();
+
+  /** true if there is at least one clause which is not MUST_NOT */
+  private boolean _positive = false;
+
+  private final List<SortField> _sort = new ArrayList<SortField>();
+
+  LuceneQuery(LuceneFilterCache filterCache, LuceneSchema schema) {
+    this._filterCache = filterCache;
+    this._schema = schema;
+  }
+
+  private LuceneQuery add(org.apache.lucene.search.Query q, Occur occur) {
+    this._query.add(q, occur);
+    if (occur != Occur.MUST_NOT) {
+      this._positive = true;
+    }
+    return this;
+  }
+
+  @Override
+  public LuceneQuery addItem(String field, String value) {
+    return this.add(new TermQuery(new Term(field, value)), Occur.MUST);
+  }
+
+  @Override
+  public LuceneQuery addFilter(String field, String value) {
+    return this.addFilter(this._filterCache.get(new Term(field, value)));
+  }
+
+  private LuceneQuery addFilter(Filter f) {
+    // the filter does not contribute to the score
+    ConstantScoreQuery q = new ConstantScoreQuery(f);
+    q.setBoost(0);
+    return this.add(q, Occur.MUST);
+  }
+
+  @Override
+  public LuceneQuery addPrefix(String field, String prefix) {
+    return this.add(new PrefixQuery(new Term(field, prefix)), Occur.MUST);
+  }
+
+  @Override
+  public LuceneQuery addRange(String field, long min, long max) {
+    return this.add(NumericRangeQuery.newLongRange(field, this._schema.precisionStep(field), min, max, true, true), Occur.MUST);
+  }
+
+  @Override
+  public LuceneQuery addRange(String field, double min, double max) {
+    return this.add(NumericRangeQuery.newDoubleRange(field, this._schema.precisionStep(field), min, max, true, true), Occur.MUST);
+  }
+
+  @Override
+  public LuceneQuery addRangeFilter(String field, long min, long max) {
+    return this.addFilter(NumericRangeFilter.newLongRange(field, this._schema.precisionStep(field), min, max, true, true));
+  }
+
+  @Override
+  public LuceneQuery addRangeFilter(String field, double min, double max) {
+    return this.addFilter(NumericRangeFilter.newDoubleRange(field, this._schema.precisionStep(field), min, max, true, true));
+  }
+
+  /** sorts with the FieldCache of the property, the type is given by the schema */
+  @Override
+  public LuceneQuery orderBy(String field, boolean descending) {
+    Property p = this._schema.getProperty(field);
+    if (p == null) {
+      throw new IllegalArgumentException("unknown property "+field);
+    }
+    if (p.getType() == Type.LONG) {
+      this._sort.add(new SortField(field, FieldCache.NUMERIC_UTILS_LONG_PARSER, descending));
+    } else if (p.getType() == Type.DOUBLE) {
+      this._sort.add(new SortField(field, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, descending));
+    } else if (p.getType() == Type.KEYWORD) {
+      this._sort.add(new SortField(field, SortField.STRING, descending));
+    } else {
+      throw new IllegalArgumentException("cannot sort on the analyzed property "+field);
+    }
+    return this;
+  }
+
+  @Override
+  public LuceneQuery addNot(Query q) {
+    return this.add(cast(q).toLuceneQuery(), Occur.MUST_NOT);
+  }
+
+  @Override
+  public LuceneQuery addAnyOf(Query... alternatives) {
+    BooleanQuery any = new BooleanQuery();
+    for (Query q : alternatives) {
+      any.add(cast(q).toLuceneQuery(), Occur.SHOULD);
+    }
+    return this.add(any, Occur.MUST);
+  }
+
+  private static LuceneQuery cast(Query q) {
+    if (!(q instanceof LuceneQuery)) {
+      throw new IllegalArgumentException("not a query of the Lucene datastore: "+q);
+    }
+    return (LuceneQuery) q;
+  }
+
+  /** returns the equivalent Lucene query */
+  public org.apache.lucene.search.Query toLuceneQuery() {
+    if (this._positive) {
+      return this._query;
+    }
+    // an empty query or a query with only negations
+    BooleanQuery q = (BooleanQuery) this._query.clone();
+    q.add(new MatchAllDocsQuery(), Occur.MUST);
+    return q;
+  }
+
+  /** returns the sort of the results, null for relevance */
+  public Sort toLuceneSort() {
+    if (this._sort.isEmpty()) {
+      return null;
+    }
+    return new Sort(this._sort.toArray(new SortField[this._sort.size()]));
+  }
+
+  @Override
+  public String toString() {
+    return this.toLuceneQuery().toString();
+  }
+
+}
@@ -0,0 +1,284 @@
+package methostore.impl.lucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.util.Version;
+
+/**
+ * keeps the top documents (doc IDs and scores) of the most recently repeated searches, so that a repeated
+ * query is neither parsed nor scored again; only the stored fields are loaded.
+ *
+ * The entries are valid for the version of the index reader they were computed on: the first search on
+ * a newer reader (i.e. after writes) clears the cache. The eviction is LRU, bounded by the estimated size of the entries.
+ * The cache is disabled by default, see {@link LuceneDatastoreImpl#setResultCacheMaxBytes(long)}.
+ */
+public class LuceneResultCache {
+
+  /**
+   * identifies a search: the normalized query, the sort and the max number of results.
+   * The normalization is done on the first lookup, nothing is computed when the cache is disabled.
+   */
+  static final class Key {
+    /** the default field of a query string, null otherwise */
+    private final String _field;
+    /** a query string, the terms of a map, or a Lucene query, as given */
+    private final Object _query;
+    private final Sort _sort;
+    private final int _maxResults;
+    /** the query string with normalized whitespaces, the sorted terms, or the Lucene query; null until needed */
+    private Object _normalized = null;
+    private int _hash;
+
+    private Key(String field, Object query, Sort sort, int maxResults) {
+      this._field = field;
+      this._query = query;
+      this._sort = sort;
+      this._maxResults = maxResults;
+    }
+
+    /** the key of a query string, the whitespaces do not matter */
+    static Key parsed(String field, String query, int maxResults) {
+      return new Key(field, query, null, maxResults);
+    }
+
+    /** the key of the terms of a map, their order does not matter */
+    static Key terms(Map<String, String> terms, int maxResults) {
+      return new Key(null, terms, null, maxResults);
+    }
+
+    /** the key of a Lucene query, it is copied when cached since queries are mutable */
+    static Key query(Query query, Sort sort, int maxResults) {
+      return new Key(null, query, sort, maxResults);
+    }
+
+    int getMaxResults() {
+      return _maxResults;
+    }
+
+    Sort getSort() {
+      return _sort;
+    }
+
+    @SuppressWarnings("unchecked")
+    Query toLuceneQuery(Analyzer analyzer) throws ParseException {
+      if (_query instanceof String) {
+        return new QueryParser(Version.LUCENE_30, _field, analyzer).parse((String) _query);
+      }
+      if (_query instanceof Map) {
+        return LuceneDatastoreImpl.toQuery((Map<String, String>) _query);
+      }
+      return (Query) _query;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object normalized() {
+      if (_normalized == null) {
+        if (_query instanceof String) {
+          _normalized = ((String) _query).trim().replaceAll("\\s+", " ");
+        } else if (_query instanceof Map) {
+          _normalized = new TreeMap<String, String>((Map<String, String>) _query);
+        } else {
+          _normalized = _query;
+        }
+        int h = _normalized.hashCode() * 31 + _maxResults;
+        h = h * 31 + (_field == null ? 0 : _field.hashCode());
+        _hash = h * 31 + (_sort == null ? 0 : _sort.hashCode());
+      }
+      return _normalized;
+    }
+
+    /** returns the key to keep in the cache, not sharing a mutable query with the caller */
+    Key copy() {
+      Key k = new Key(_field, _query instanceof Query ? ((Query) _query).clone() : _query, _sort, _maxResults);
+      k._normalized = _query instanceof Query ? k._query : normalized();
+      k._hash = hashCode();
+      return k;
+    }
+
+    /** a rough estimate of the heap used by the key */
+    int bytes() {
+      return 64 + 2 * normalized().toString().length();
+    }
+
+    @Override
+    public int hashCode() {
+      normalized();
+      return _hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return hashCode() == k.hashCode() && _maxResults == k._maxResults && normalized().equals(k.normalized())
+          && (_field == null ? k._field == null : _field.equals(k._field))
+          && (_sort == null ? k._sort == null : _sort.equals(k._sort));
+    }
+
+    @Override
+    public String toString() {
+      return (_field == null ? "" : _field+": ")+normalized()+(_sort == null ? "" : " "+_sort)+" top "+_maxResults;
+    }
+  }
+
+  /** the doc IDs and scores of a search */
+  private static final class Result {
+    final int[] _docs;
+    final float[] _scores;
+    /** the sort values of each hit, null if the search is not sorted */
+    final Object[][] _fields;
+    final long _bytes;
+
+    Result(ScoreDoc[] hits, Key key) {
+      _docs = new int[hits.length];
+      _scores = new float[hits.length];
+      // the sorted searches return FieldDocs, whose sort values are merged across shards
+      _fields = key.getSort() == null ? null : new Object[hits.length][];
+      for (int i = 0; i < hits.length; i++) {
+        _docs[i] = hits[i].doc;
+        _scores[i] = hits[i].score;
+        if (_fields != null) {
+          _fields[i] = ((FieldDoc) hits[i]).fields;
+        }
+      }
+      _bytes = 64 + (_fields == null ? 8L : 40L) * hits.length + key.bytes();
+    }
+
+    ScoreDoc hit(int i) {
+      return _fields == null ? new ScoreDoc(_docs[i], _scores[i]) : new FieldDoc(_docs[i], _scores[i], _fields[i]);
+    }
+  }
+
+  private volatile long _maxBytes;
+  private long _bytes = 0;
+
+  /** the version of the reader of the entries */
+  private long _readerVersion = -1;
+
+  private long _hits = 0;
+  private long _misses = 0;
+  private long _evictions = 0;
+  private long _invalidations = 0;
+
+  private final LinkedHashMap<Key, Result> _results = new LinkedHashMap<Key, Result>(16, 0.75f, true);
+
+  LuceneResultCache(long maxBytes) {
+    setMaxBytes(maxBytes);
+  }
+
+  synchronized void setMaxBytes(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException();
+    }
+    this._maxBytes = maxBytes;
+    evict();
+  }
+
+  boolean isEnabled() {
+    return _maxBytes > 0;
+  }
+
+  /** returns the cached top documents of the search on the reader, or null */
+  synchronized ScoreDoc[] get(Key key, IndexReader reader) {
+    Result r = reader.getVersion() == _readerVersion ? _results.get(key) : null;
+    if (r == null) {
+      _misses++;
+      return null;
+    }
+    _hits++;
+    ScoreDoc[] hits = new ScoreDoc[r._docs.length];
+    for (int i = 0; i < hits.length; i++) {
+      hits[i] = r.hit(i);
+    }
+    return hits;
+  }
+
+  /** caches the top documents of a search on the reader; a newer reader invalidates the previous entries */
+  synchronized void put(Key key, IndexReader reader, ScoreDoc[] hits) {
+    long version = reader.getVersion();
+    if (version < _readerVersion || _maxBytes == 0) {
+      // a search on an older searcher, concurrent with a refresh
+      return;
+    }
+    if (version > _readerVersion) {
+      if (!_results.isEmpty()) {
+        _invalidations++;
+      }
+      clear();
+      _readerVersion = version;
+    }
+    Result r = new Result(hits, key);
+    Result previous = _results.put(key.copy(), r);
+    if (previous != null) {
+      _bytes -= previous._bytes;
+    }
+    _bytes += r._bytes;
+    evict();
+  }
+
+  /** removes the least recently used entries beyond the max size */
+  private void evict() {
+    Iterator<Result> it = _results.values().iterator();
+    while (_bytes > _maxBytes && it.hasNext()) {
+      _bytes -= it.next()._bytes;
+      it.remove();
+      _evictions++;
+    }
+  }
+
+  synchronized void clear() {
+    _results.clear();
+    _bytes = 0;
+  }
+
+  public synchronized long getHits() {
+    return _hits;
+  }
+
+  public synchronized long getMisses() {
+    return _misses;
+  }
+
+  /** returns hits / (hits + misses), 0 if there was no search */
+  public synchronized double getHitRate() {
+    return _hits + _misses == 0 ? 0 : (double) _hits / (_hits + _misses);
+  }
+
+  public synchronized long getEvictions() {
+    return _evictions;
+  }
+
+  /** returns the number of times the entries were dropped because the index changed */
+  public synchronized long getInvalidations() {
+    return _invalidations;
+  }
+
+  /** returns the estimated size of the entries */
+  public synchronized long getBytes() {
+    return _bytes;
+  }
+
+  public synchronized int size() {
+    return _results.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "result cache: "+size()+" searches, "+_bytes+"/"+_maxBytes+" bytes, "+_hits+" hits, "+_misses+" misses, "
+        +_evictions+" evictions, "+_invalidations+" invalidations";
+  }
+
+}
@@ -0,0 +1,203 @@
+package methostore.impl.lucene;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.Version;
+
+/**
+ * Records once per datastore how each property is indexed (type, analyzer, stored/indexed flags
+ * and term vectors), instead of repeating it in every document.
+ *
+ * Properties are registered when entities are put, or defined beforehand with
+ * {@link #define(String, Type, boolean, boolean, boolean)}.
+ * The schema is persisted in the user data of the Lucene commits.
+ */
+public class LuceneSchema {
+
+  /** prefix of the commit user data keys */
+  static final String COMMIT_KEY_PREFIX = "methostore.schema.";
+
+  public static enum Type { STRING, KEYWORD, LONG, DOUBLE }
+
+  /** the indexing options of a property */
+  public static class Property {
+    private final String _name;
+    private final Type _type;
+    /** the class name of the analyzer, null for numeric properties */
+    private final String _analyzer;
+    private final boolean _stored;
+    private final boolean _indexed;
+    private final boolean _termVector;
+    /** the precision step of the trie encoding of numeric properties */
+    private final int _precisionStep;
+
+    public Property(String name, Type type, String analyzer, boolean stored, boolean indexed, boolean termVector) {
+      this(name, type, analyzer, stored, indexed, termVector, NumericUtils.PRECISION_STEP_DEFAULT);
+    }
+
+    public Property(String name, Type type, String analyzer, boolean stored, boolean indexed, boolean termVector, int precisionStep) {
+      if (!stored && !indexed) {
+        throw new IllegalArgumentException(name+" must be stored or indexed");
+      }
+      if (precisionStep < 1) {
+        throw new IllegalArgumentException("precisionStep must be >=1");
+      }
+      this._name = name;
+      this._type = type;
+      this._analyzer = analyzer;
+      this._stored = stored;
+      this._indexed = indexed;
+      this._termVector = termVector;
+      this._precisionStep = precisionStep;
+    }
+
+    public String getName() { return _name; }
+    public Type getType() { return _type; }
+    public String getAnalyzer() { return _analyzer; }
+    public boolean isStored() { return _stored; }
+    public boolean isIndexed() { return _indexed; }
+    public boolean hasTermVector() { return _termVector; }
+    public int getPrecisionStep() { return _precisionStep; }
+
+    /** returns the same options for another type and analyzer */
+    Property as(Type type, String analyzer) {
+      if (type==_type && (analyzer==null ? _analyzer==null : analyzer.equals(_analyzer))) {
+        return this;
+      }
+      return new Property(_name, type, analyzer, _stored, _indexed, _termVector, _precisionStep);
+    }
+
+    String encode() {
+      return _type+","+(_analyzer==null?"":_analyzer)+","+_stored+","+_indexed+","+_termVector+","+_precisionStep;
+    }
+
+    static Property decode(String name, String s) {
+      String[] items = s.split(",", -1);
+      return new Property(name, Type.valueOf(items[0]), items[1].length()==0?null:items[1],
+          Boolean.parseBoolean(items[2]), Boolean.parseBoolean(items[3]), Boolean.parseBoolean(items[4]),
+          items.length > 5 ? Integer.parseInt(items[5]) : NumericUtils.PRECISION_STEP_DEFAULT);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Property && ((Property) o)._name.equals(_name) && ((Property) o).encode().equals(encode());
+    }
+
+    @Override
+    public int hashCode() {
+      return _name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return _name+": "+encode();
+    }
+  }
+
+  private final ConcurrentMap<String, Property> _properties = new ConcurrentHashMap<String, Property>();
+
+  /** analyzers instantiated from their class names */
+  private final ConcurrentMap<String, Analyzer> _analyzers = new ConcurrentHashMap<String, Analyzer>();
+
+  /** returns the definition of the property, or null if it is unknown */
+  public Property getProperty(String name) {
+    return _properties.get(name);
+  }
+
+  public Collection<Property> getProperties() {
+    return Collections.unmodifiableCollection(_properties.values());
+  }
+
+  /**
+   * defines how a property is indexed by the next entities
+   * (it is persisted at the next commit with writes)
+   */
+  public LuceneSchema define(String name, Type type, boolean stored, boolean indexed, boolean termVector) {
+    return define(name, type, stored, indexed, termVector, NumericUtils.PRECISION_STEP_DEFAULT);
+  }
+
+  /**
+   * defines how a property is indexed, with the precision step of numeric properties
+   * (smaller steps mean faster range queries and a bigger index).
+   * The precision step of an existing numeric property must not be changed, previous entities would not match range queries anymore.
+   */
+  public LuceneSchema define(String name, Type type, boolean stored, boolean indexed, boolean termVector, int precisionStep) {
+    String analyzer = type==Type.KEYWORD ? KeywordAnalyzer.class.getName() : null;
+    Property previous = _properties.get(name);
+    if (type==Type.STRING && previous!=null) {
+      analyzer = previous.getAnalyzer();
+    }
+    register(new Property(name, type, analyzer, stored, indexed, termVector, precisionStep));
+    return this;
+  }
+
+  /** records a property, the last registration wins */
+  void register(Property p) {
+    // most of the time, the property is already registered
+    if (_properties.get(p.getName()) != p) {
+      _properties.put(p.getName(), p);
+    }
+  }
+
+  /** returns the precision step of a numeric property, the Lucene default if unknown */
+  int precisionStep(String name) {
+    Property p = _properties.get(name);
+    return p == null ? NumericUtils.PRECISION_STEP_DEFAULT : p.getPrecisionStep();
+  }
+
+  /** returns the analyzer of a string property, defaultAnalyzer if unknown */
+  Analyzer analyzer(Property p, Analyzer defaultAnalyzer) {
+    String className = p.getAnalyzer();
+    if (p.getType()==Type.KEYWORD) {
+      return new KeywordAnalyzer();
+    }
+    if (className==null || className.equals(defaultAnalyzer.getClass().getName())) {
+      return defaultAnalyzer;
+    }
+    Analyzer a = _analyzers.get(className);
+    if (a == null) {
+      a = instantiate(className, defaultAnalyzer);
+      _analyzers.put(className, a);
+    }
+    return a;
+  }
+
+  private static Analyzer instantiate(String className, Analyzer defaultAnalyzer) {
+    try {
+      Class<?> c = Class.forName(className);
+      try {
+        return (Analyzer) c.getConstructor(Version.class).newInstance(Version.LUCENE_34);
+      } catch (NoSuchMethodException e) {
+        return (Analyzer) c.getConstructor().newInstance();
+      }
+    } catch (Exception e) {
+      // e.g. an analyzer class that is not in the classpath anymore
+      return defaultAnalyzer;
+    }
+  }
+
+  void toCommitUserData(Map<String, String> userData) {
+    for (Property p : _properties.values()) {
+      userData.put(COMMIT_KEY_PREFIX+p.getName(), p.encode());
+    }
+  }
+
+  static LuceneSchema fromCommitUserData(Map<String, String> userData) {
+    LuceneSchema schema = new LuceneSchema();
+    for (Map.Entry<String, String> e : userData.entrySet()) {
+      if (e.getKey().startsWith(COMMIT_KEY_PREFIX)) {
+        String name = e.getKey().substring(COMMIT_KEY_PREFIX.length());
+        schema.register(Property.decode(name, e.getValue()));
+      }
+    }
+    return schema;
+  }
+
+}
@@ -0,0 +1,214 @@
+package methostore.impl.lucene;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import methostore.Entity;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * the binary snapshot format of a datastore, streamed with file channels.
+ *
+ * A snapshot is: a header (magic, version, flags), blocks of entity records
+ * (int raw length, int stored length, then the records, deflated if the compression flag is set),
+ * an empty block, and the number of entities (long).
+ * The records are encoded by {@link LuceneEntityCodec}.
+ */
+// this class must remain package visible
+class LuceneSnapshot {
+
+  static final int MAGIC = 0x4d534e50; // MSNP
+  static final int VERSION = 1;
+  static final int FLAG_COMPRESSED = 1;
+
+  /** the raw size from which a block is written */
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  private LuceneSnapshot() {
+  }
+
+  /** writes all entities visible to the searcher (a point-in-time view) and returns their number */
+  static long export(LuceneDatastoreImpl datastore, IndexSearcher searcher, File file, boolean compress) throws IOException {
+    FileOutputStream fos = new FileOutputStream(file);
+    FileChannel channel = fos.getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(12);
+      header.putInt(MAGIC).putInt(VERSION).putInt(compress ? FLAG_COMPRESSED : 0);
+      header.flip();
+      writeFully(channel, header);
+
+      Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+      LuceneEntityCodec.ByteArrayOut block = new LuceneEntityCodec.ByteArrayOut();
+      DataOutputStream out = new DataOutputStream(block);
+      LuceneSchema schema = datastore.getSchema();
+      IndexReader reader = searcher.getIndexReader();
+      long count = 0;
+      try {
+        for (int i = 0; i < reader.maxDoc(); i++) {
+          if (reader.isDeleted(i)) {
+            continue;
+          }
+          LuceneEntityCodec.write(out, datastore.loaded(reader.document(i)), schema);
+          count++;
+          if (block.size() >= BLOCK_SIZE) {
+            out.flush();
+            writeBlock(channel, block, deflater);
+          }
+        }
+        out.flush();
+        if (block.size() > 0) {
+          writeBlock(channel, block, deflater);
+        }
+      } finally {
+        if (deflater != null) {
+          deflater.end();
+        }
+      }
+      ByteBuffer trailer = ByteBuffer.allocate(16);
+      trailer.putInt(0).putInt(0).putLong(count);
+      trailer.flip();
+      writeFully(channel, trailer);
+      channel.force(false);
+      return count;
+    } finally {
+      channel.close();
+      fos.close();
+    }
+  }
+
+  private static void writeBlock(FileChannel channel, LuceneEntityCodec.ByteArrayOut block, Deflater deflater) throws IOException {
+    int rawLength = block.size();
+    byte[] stored = block.buffer();
+    int storedLength = rawLength;
+    if (deflater != null) {
+      deflater.reset();
+      deflater.setInput(block.buffer(), 0, rawLength);
+      deflater.finish();
+      // deflate may slightly expand incompressible data
+      stored = new byte[rawLength + rawLength / 100 + 64];
+      storedLength = 0;
+      while (!deflater.finished()) {
+        if (storedLength == stored.length) {
+          byte[] larger = new byte[stored.length * 2];
+          System.arraycopy(stored, 0, larger, 0, storedLength);
+          stored = larger;
+        }
+        storedLength += deflater.deflate(stored, storedLength, stored.length - storedLength);
+      }
+    }
+    ByteBuffer lengths = ByteBuffer.allocate(8);
+    lengths.putInt(rawLength).putInt(storedLength);
+    lengths.flip();
+    writeFully(channel, lengths);
+    writeFully(channel, ByteBuffer.wrap(stored, 0, storedLength));
+    block.reset();
+  }
+
+  /** puts the entities of the snapshot with putAll batches of batchSize entities, returns their number */
+  static long importInto(LuceneDatastoreImpl datastore, File file, int batchSize) throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+    FileChannel channel = fis.getChannel();
+    try {
+      ByteBuffer header = readFully(channel, 12);
+      if (header.getInt() != MAGIC) {
+        throw new MethostoreException("not a methostore snapshot: "+file);
+      }
+      int version = header.getInt();
+      if (version > VERSION) {
+        throw new MethostoreException("unsupported snapshot version "+version+": "+file);
+      }
+      boolean compressed = (header.getInt() & FLAG_COMPRESSED) != 0;
+
+      Inflater inflater = compressed ? new Inflater() : null;
+      List<Entity> batch = new ArrayList<Entity>(batchSize);
+      long count = 0;
+      try {
+        while (true) {
+          ByteBuffer lengths = readFully(channel, 8);
+          int rawLength = lengths.getInt();
+          int storedLength = lengths.getInt();
+          if (rawLength == 0) {
+            break;
+          }
+          ByteBuffer block = readFully(channel, storedLength);
+          if (inflater != null) {
+            block = inflate(inflater, block, rawLength);
+          }
+          while (block.hasRemaining()) {
+            batch.add(LuceneEntityCodec.read(block, datastore));
+            count++;
+            if (batch.size() == batchSize) {
+              datastore.putAll(batch);
+              batch.clear();
+            }
+          }
+        }
+      } finally {
+        if (inflater != null) {
+          inflater.end();
+        }
+      }
+      datastore.putAll(batch);
+      long expected = readFully(channel, 8).getLong();
+      if (expected != count) {
+        throw new MethostoreException("snapshot with "+count+" entities instead of "+expected+": "+file);
+      }
+      return count;
+    } finally {
+      channel.close();
+      fis.close();
+    }
+  }
+
+  private static ByteBuffer inflate(Inflater inflater, ByteBuffer block, int rawLength) {
+    inflater.reset();
+    inflater.setInput(block.array(), 0, block.limit());
+    byte[] raw = new byte[rawLength];
+    try {
+      int n = 0;
+      while (n < rawLength && !inflater.finished()) {
+        int inflated = inflater.inflate(raw, n, rawLength - n);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += inflated;
+      }
+      if (n != rawLength) {
+        throw new MethostoreException("corrupted compressed block");
+      }
+    } catch (DataFormatException e) {
+      throw new MethostoreException(e);
+    }
+    return ByteBuffer.wrap(raw);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new MethostoreException("truncated snapshot");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+}
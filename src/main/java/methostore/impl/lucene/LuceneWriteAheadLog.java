@@ -0,0 +1,290 @@
+package methostore.impl.lucene;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.document.Document;
+
+/**
+ * The write-ahead log of a datastore: the puts and deletes are durable once appended and fsynced here,
+ * without a Lucene commit per write.
+ *
+ * The log is a sequence of generations (files wal-&lt;generation&gt;.log) made of frames like
+ * the change log (see {@link LuceneChangeLog}), whose payload is a byte type and the entity record
+ * of a put (see {@link LuceneEntityCodec}) or the ID of a delete.
+ * Each Lucene commit starts a new generation and records it in the commit user data:
+ * the older generations are then in the index and deleted. At opening, the generations since the one
+ * of the last commit are replayed into the IndexWriter (puts and deletes are idempotent).
+ *
+ * The concurrent waiters of {@link #awaitSynced()} share the same fsync; a background thread also
+ * fsyncs every syncIntervalMillis (bounding the writes lost by putFast) and commits the index every
+ * commitIntervalMillis.
+ */
+// this class must remain package visible
+class LuceneWriteAheadLog {
+
+  static final String GENERATION_KEY = "methostore.wal.generation";
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String PREFIX = "wal-";
+  private static final String SUFFIX = ".log";
+
+  private final File _dir;
+  private long _generation;
+  private RandomAccessFile _file;
+  private FileChannel _channel;
+
+  private final LuceneEntityCodec.ByteArrayOut _buffer = new LuceneEntityCodec.ByteArrayOut();
+  private final DataOutputStream _out = new DataOutputStream(_buffer);
+  private final LuceneEntityCodec.ByteArrayOut _payload = new LuceneEntityCodec.ByteArrayOut();
+  private final DataOutputStream _payloadOut = new DataOutputStream(_payload);
+  private final CRC32 _crc = new CRC32();
+
+  /** taken before the monitor of the log, one fsync at a time */
+  private final Object _syncLock = new Object();
+  /** the bytes appended since the opening (guarded by this), and the ones on disk */
+  private long _appended = 0;
+  private volatile long _synced = 0;
+
+  private ScheduledExecutorService _scheduler = null;
+
+  private LuceneWriteAheadLog(File dir, long generation) throws IOException {
+    this._dir = dir;
+    this._generation = generation;
+    openGeneration();
+  }
+
+  /** opens a new generation after the existing ones */
+  static LuceneWriteAheadLog open(File dir) throws IOException {
+    dir.mkdirs();
+    List<Long> generations = generations(dir);
+    long last = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+    return new LuceneWriteAheadLog(dir, last + 1);
+  }
+
+  /** replays the generations since fromGeneration into the datastore, returns the number of replayed writes */
+  static int replay(File dir, long fromGeneration, LuceneDatastoreImpl datastore) throws IOException {
+    int n = 0;
+    if (!dir.isDirectory()) {
+      return n;
+    }
+    ByteBuffer header = ByteBuffer.allocate(LuceneChangeLog.FRAME_HEADER);
+    for (long generation : generations(dir)) {
+      if (generation < fromGeneration) {
+        continue;
+      }
+      FileInputStream in = new FileInputStream(file(dir, generation));
+      try {
+        FileChannel channel = in.getChannel();
+        long position = 0;
+        ByteBuffer payload;
+        // stops at the first torn frame, the writes after it were never acknowledged
+        while ((payload = LuceneChangeLog.readFrame(channel, position, header)) != null) {
+          position += LuceneChangeLog.FRAME_HEADER + payload.capacity();
+          if (payload.get() == PUT) {
+            datastore.write(LuceneEntityCodec.read(payload, datastore));
+          } else {
+            datastore.removeAll(Collections.singleton(LuceneEntityCodec.readString(payload)));
+          }
+          n++;
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return n;
+  }
+
+  private static List<Long> generations(File dir) {
+    List<Long> generations = new ArrayList<Long>();
+    String[] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          try {
+            generations.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            // not a log
+          }
+        }
+      }
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  private static File file(File dir, long generation) {
+    return new File(dir, PREFIX+generation+SUFFIX);
+  }
+
+  private void openGeneration() throws IOException {
+    this._file = new RandomAccessFile(file(_dir, _generation), "rw");
+    this._channel = _file.getChannel();
+    _channel.truncate(0);
+  }
+
+  synchronized void appendPut(Document doc, LuceneSchema schema) throws IOException {
+    _payload.reset();
+    _payloadOut.writeByte(PUT);
+    LuceneEntityCodec.write(_payloadOut, doc, schema);
+    append();
+  }
+
+  synchronized void appendDelete(String id) throws IOException {
+    _payload.reset();
+    _payloadOut.writeByte(DELETE);
+    LuceneEntityCodec.writeString(_payloadOut, id);
+    append();
+  }
+
+  private void append() throws IOException {
+    _payloadOut.flush();
+    int before = _buffer.size();
+    LuceneChangeLog.writeFrame(_out, _payload, _crc);
+    _out.flush();
+    _appended += _buffer.size() - before;
+    if (_buffer.size() >= BUFFER_SIZE) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    ByteBuffer b = ByteBuffer.wrap(_buffer.buffer(), 0, _buffer.size());
+    while (b.hasRemaining()) {
+      _channel.write(b);
+    }
+    _buffer.reset();
+  }
+
+  /** blocks until everything appended so far (e.g. by this thread) is on disk */
+  void awaitSynced() throws IOException {
+    long target;
+    synchronized (this) {
+      target = _appended;
+    }
+    if (_synced >= target) {
+      return;
+    }
+    synchronized (_syncLock) {
+      // the previous fsync may have covered our writes
+      if (_synced >= target) {
+        return;
+      }
+      long end;
+      synchronized (this) {
+        flush();
+        end = _appended;
+      }
+      // the appends go on during the fsync, the generation cannot change (roll takes _syncLock)
+      _channel.force(false);
+      _synced = end;
+    }
+  }
+
+  /** starts a new generation and returns it, all writes appended before are in the previous ones */
+  long roll() throws IOException {
+    synchronized (_syncLock) {
+      synchronized (this) {
+        flush();
+        _channel.force(false);
+        _synced = _appended;
+        _file.close();
+        _generation++;
+        openGeneration();
+        return _generation;
+      }
+    }
+  }
+
+  /** deletes the generations before the given one, once they are committed in the index */
+  void deleteBefore(long generation) {
+    for (long g : generations(_dir)) {
+      if (g < generation) {
+        file(_dir, g).delete();
+      }
+    }
+  }
+
+  /** starts the background fsyncs and commits */
+  synchronized void start(final LuceneDatastoreImpl datastore, long syncIntervalMillis, long commitIntervalMillis) {
+    _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "methostore-wal");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    if (syncIntervalMillis > 0) {
+      _scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            awaitSynced();
+          } catch (Exception e) {
+            // retried at the next interval, the durable writes get the error themselves
+            System.err.println("methostore-wal: "+e);
+          }
+        }
+      }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    if (commitIntervalMillis > 0) {
+      _scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (datastore.hasUncommittedWrites()) {
+              datastore.commit();
+            }
+          } catch (Exception e) {
+            System.err.println("methostore-wal: "+e);
+          }
+        }
+      }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** stops the background thread, to be called before the last commit */
+  void stop() {
+    ScheduledExecutorService scheduler;
+    synchronized (this) {
+      scheduler = _scheduler;
+      _scheduler = null;
+    }
+    if (scheduler != null) {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  void close() throws IOException {
+    stop();
+    synchronized (_syncLock) {
+      synchronized (this) {
+        flush();
+        _channel.force(false);
+        _file.close();
+      }
+    }
+  }
+
+}
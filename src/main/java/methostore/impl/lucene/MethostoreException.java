@@ -7,5 +7,9 @@ public class MethostoreException extends RuntimeException {
   public MethostoreException(Exception e) {
     super(e);
   }
+
+  public MethostoreException(String message) {
+    super(message);
+  }
 }
 
@@ -0,0 +1,518 @@
+package methostore.impl.lucene;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import methostore.Aggregation;
+import methostore.Datastore;
+import methostore.Entity;
+import methostore.EntityCursor;
+import methostore.Query;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Partitions the entities across several Lucene datastores (the shards) by hash of their ID.
+ *
+ * get/put/delete go to a single shard, searches and counts are run on all shards in parallel
+ * and their results merged by score or by sort key.
+ * The number of shards is fixed at creation: it is persisted in each shard and checked at opening.
+ * Note that the scores of different shards are computed with the term statistics of each shard.
+ *
+ * Instances are obtained with {@link LuceneDatastoreFactory#createShardedDatastore(String...)}.
+ */
+public class ShardedLuceneDatastore implements Datastore {
+
+  /** the commit user data key of the position of a shard, e.g. "2/8" */
+  static final String SHARD_KEY = "methostore.shard";
+
+  private final LuceneDatastoreImpl[] _shards;
+
+  private final ExecutorService _executor;
+
+  // the constructor must remain package-visible
+  // clients must use the factory
+  ShardedLuceneDatastore(List<LuceneDatastoreImpl> shards) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException();
+    }
+    this._shards = shards.toArray(new LuceneDatastoreImpl[shards.size()]);
+    // all shards are checked before any layout is recorded
+    for (int i = 0; i < _shards.length; i++) {
+      String layout = i+"/"+_shards.length;
+      String persisted = _shards[i].getUserData(SHARD_KEY);
+      if (persisted != null && !persisted.equals(layout)) {
+        // releases the write locks, so that the directories can be opened again
+        closeShards(shards);
+        throw new MethostoreException("shard "+layout+" was created as shard "+persisted);
+      }
+    }
+    for (int i = 0; i < _shards.length; i++) {
+      _shards[i].setUserData(SHARD_KEY, i+"/"+_shards.length);
+      // all shards share the same schema, so that a property registered by one shard is known by the others
+      _shards[i].shareSchema(_shards[0].getSchema());
+    }
+    this._executor = Executors.newFixedThreadPool(_shards.length, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "methostore-shard");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /** returns the shards, e.g. to configure them */
+  public List<LuceneDatastoreImpl> getShards() {
+    List<LuceneDatastoreImpl> l = new ArrayList<LuceneDatastoreImpl>();
+    Collections.addAll(l, _shards);
+    return l;
+  }
+
+  /** returns the schema shared by all shards */
+  public LuceneSchema getSchema() {
+    return _shards[0].getSchema();
+  }
+
+  /** returns the shard of an entity, String.hashCode is stable across JVMs */
+  LuceneDatastoreImpl shard(String id) {
+    return _shards[(id.hashCode() & 0x7fffffff) % _shards.length];
+  }
+
+  /** something done on a shard */
+  private static interface ShardTask<T> {
+    T run(LuceneDatastoreImpl shard);
+  }
+
+  /** runs the task on the shards in parallel and returns the results in the order of the shards */
+  private <T> List<T> fanOut(List<LuceneDatastoreImpl> shards, final ShardTask<T> task) {
+    List<Future<T>> futures = new ArrayList<Future<T>>();
+    for (final LuceneDatastoreImpl shard : shards) {
+      futures.add(_executor.submit(new Callable<T>() {
+        @Override
+        public T call() {
+          return task.run(shard);
+        }
+      }));
+    }
+    List<T> results = new ArrayList<T>();
+    try {
+      for (Future<T> f : futures) {
+        results.add(f.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MethostoreException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new MethostoreException(e);
+    }
+    return results;
+  }
+
+  private <T> List<T> fanOut(ShardTask<T> task) {
+    return fanOut(getShards(), task);
+  }
+
+  /** groups the IDs by shard */
+  private Map<LuceneDatastoreImpl, List<String>> partition(Collection<String> ids) {
+    Map<LuceneDatastoreImpl, List<String>> m = new HashMap<LuceneDatastoreImpl, List<String>>();
+    for (String id : ids) {
+      LuceneDatastoreImpl shard = shard(id);
+      if (!m.containsKey(shard)) {
+        m.put(shard, new ArrayList<String>());
+      }
+      m.get(shard).add(id);
+    }
+    return m;
+  }
+
+  @Override
+  public Entity createEntity() {
+    return _shards[0].createEntity();
+  }
+
+  @Override
+  public ShardedLuceneDatastore put(Entity e) {
+    shard(e.getId()).put(e);
+    return this;
+  }
+
+  @Override
+  public ShardedLuceneDatastore delete(Entity e) {
+    shard(e.getId()).delete(e);
+    return this;
+  }
+
+  @Override
+  public ShardedLuceneDatastore putAll(Iterable<Entity> entities) {
+    final Map<LuceneDatastoreImpl, List<Entity>> m = new HashMap<LuceneDatastoreImpl, List<Entity>>();
+    for (Entity e : entities) {
+      LuceneDatastoreImpl shard = shard(e.getId());
+      if (!m.containsKey(shard)) {
+        m.put(shard, new ArrayList<Entity>());
+      }
+      m.get(shard).add(e);
+    }
+    fanOut(new ArrayList<LuceneDatastoreImpl>(m.keySet()), new ShardTask<Object>() {
+      @Override
+      public Object run(LuceneDatastoreImpl shard) {
+        return shard.putAll(m.get(shard));
+      }
+    });
+    return this;
+  }
+
+  @Override
+  public ShardedLuceneDatastore deleteAll(Collection<String> ids) {
+    final Map<LuceneDatastoreImpl, List<String>> m = partition(ids);
+    fanOut(new ArrayList<LuceneDatastoreImpl>(m.keySet()), new ShardTask<Object>() {
+      @Override
+      public Object run(LuceneDatastoreImpl shard) {
+        return shard.deleteAll(m.get(shard));
+      }
+    });
+    return this;
+  }
+
+  @Override
+  public ShardedLuceneDatastore deleteByQuery(final String query) {
+    fanOut(new ShardTask<Object>() {
+      @Override
+      public Object run(LuceneDatastoreImpl shard) {
+        return shard.deleteByQuery(query);
+      }
+    });
+    return this;
+  }
+
+  @Override
+  public Entity get(String id) {
+    return shard(id).get(id);
+  }
+
+  @Override
+  public Entity get(String id, Set<String> properties) {
+    return shard(id).get(id, properties);
+  }
+
+  @Override
+  public Map<String, Entity> getAll(Collection<String> ids) {
+    final Map<LuceneDatastoreImpl, List<String>> m = partition(ids);
+    Map<String, Entity> result = new HashMap<String, Entity>();
+    for (Map<String, Entity> r : fanOut(new ArrayList<LuceneDatastoreImpl>(m.keySet()), new ShardTask<Map<String, Entity>>() {
+      @Override
+      public Map<String, Entity> run(LuceneDatastoreImpl shard) {
+        return shard.getAll(m.get(shard));
+      }
+    })) {
+      result.putAll(r);
+    }
+    return result;
+  }
+
+  /** the structured queries of the first shard are valid on all shards */
+  @Override
+  public Query createQuery() {
+    return _shards[0].createQuery();
+  }
+
+  @Override
+  public List<Entity> searchEntities(final Query query) {
+    Sort sort = query instanceof LuceneQuery ? ((LuceneQuery) query).toLuceneSort() : null;
+    return merge(fanOut(new ShardTask<List<Entity>>() {
+      @Override
+      public List<Entity> run(LuceneDatastoreImpl shard) {
+        return shard.searchEntities(query);
+      }
+    }), sort);
+  }
+
+  @Override
+  public List<Entity> searchEntities(final Map<String, String> query) {
+    return merge(fanOut(new ShardTask<List<Entity>>() {
+      @Override
+      public List<Entity> run(LuceneDatastoreImpl shard) {
+        return shard.searchEntities(query);
+      }
+    }), null);
+  }
+
+  @Override
+  public List<Entity> searchEntities(final String query) {
+    return merge(fanOut(new ShardTask<List<Entity>>() {
+      @Override
+      public List<Entity> run(LuceneDatastoreImpl shard) {
+        return shard.searchEntities(query);
+      }
+    }), null);
+  }
+
+  @Override
+  public List<Entity> searchEntities(final String query, final Set<String> properties) {
+    return merge(fanOut(new ShardTask<List<Entity>>() {
+      @Override
+      public List<Entity> run(LuceneDatastoreImpl shard) {
+        return shard.searchEntities(query, properties);
+      }
+    }), null);
+  }
+
+  /** merges the top results of the shards by score (sort null) or by sort key */
+  private List<Entity> merge(List<List<Entity>> results, final Sort sort) {
+    List<Entity> l = new ArrayList<Entity>();
+    for (List<Entity> r : results) {
+      l.addAll(r);
+    }
+    Collections.sort(l, new Comparator<Entity>() {
+      @Override
+      public int compare(Entity e1, Entity e2) {
+        return sort == null ? compareScores(e1, e2) : compareSortKeys(e1, e2, sort.getSort());
+      }
+    });
+    int maxResults = _shards[0].getMaxResults();
+    return l.size() > maxResults ? new ArrayList<Entity>(l.subList(0, maxResults)) : l;
+  }
+
+  private static int compareScores(Entity e1, Entity e2) {
+    // best score first
+    return Float.compare(((FoundLuceneEntity) e2)._score.score, ((FoundLuceneEntity) e1)._score.score);
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static int compareSortKeys(Entity e1, Entity e2, SortField[] sortFields) {
+    Object[] k1 = ((FieldDoc) ((FoundLuceneEntity) e1)._score).fields;
+    Object[] k2 = ((FieldDoc) ((FoundLuceneEntity) e2)._score).fields;
+    for (int i = 0; i < sortFields.length; i++) {
+      Comparable c1 = (Comparable) k1[i];
+      Comparable c2 = (Comparable) k2[i];
+      // missing values first
+      int c = c1 == null ? (c2 == null ? 0 : -1) : (c2 == null ? 1 : c1.compareTo(c2));
+      if (c != 0) {
+        return sortFields[i].getReverse() ? -c : c;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public int count(final String query) {
+    int n = 0;
+    for (int c : fanOut(new ShardTask<Integer>() {
+      @Override
+      public Integer run(LuceneDatastoreImpl shard) {
+        return shard.count(query);
+      }
+    })) {
+      n += c;
+    }
+    return n;
+  }
+
+  @Override
+  public int count(final Map<String, String> query) {
+    int n = 0;
+    for (int c : fanOut(new ShardTask<Integer>() {
+      @Override
+      public Integer run(LuceneDatastoreImpl shard) {
+        return shard.count(query);
+      }
+    })) {
+      n += c;
+    }
+    return n;
+  }
+
+  @Override
+  public LuceneAggregation createAggregation() {
+    return new LuceneAggregation();
+  }
+
+  @Override
+  public Aggregation aggregate(final Query query, final Aggregation aggregation) {
+    return mergeAggregations(aggregation, new ShardTask<LuceneAggregation>() {
+      @Override
+      public LuceneAggregation run(LuceneDatastoreImpl shard) {
+        return (LuceneAggregation) shard.aggregate(query, ((LuceneAggregation) aggregation).copy());
+      }
+    });
+  }
+
+  @Override
+  public Aggregation aggregate(final String query, final Aggregation aggregation) {
+    return mergeAggregations(aggregation, new ShardTask<LuceneAggregation>() {
+      @Override
+      public LuceneAggregation run(LuceneDatastoreImpl shard) {
+        return (LuceneAggregation) shard.aggregate(query, ((LuceneAggregation) aggregation).copy());
+      }
+    });
+  }
+
+  /** runs the aggregation on each shard, with a copy of the aggregation, and adds up the results */
+  private Aggregation mergeAggregations(Aggregation aggregation, ShardTask<LuceneAggregation> task) {
+    if (!(aggregation instanceof LuceneAggregation)) {
+      throw new IllegalArgumentException("not an aggregation of the Lucene datastore: "+aggregation);
+    }
+    List<LuceneAggregation> results = fanOut(task);
+    LuceneAggregation merged = (LuceneAggregation) aggregation;
+    merged.clear();
+    for (LuceneAggregation a : results) {
+      merged.merge(a);
+    }
+    return merged;
+  }
+
+  @Override
+  public int size() {
+    int n = 0;
+    for (LuceneDatastoreImpl shard : _shards) {
+      n += shard.size();
+    }
+    return n;
+  }
+
+  @Override
+  public boolean exists(String id) {
+    return shard(id).exists(id);
+  }
+
+  @Override
+  public List<Entity> getAllEntities() {
+    List<Entity> l = new ArrayList<Entity>();
+    for (List<Entity> r : fanOut(new ShardTask<List<Entity>>() {
+      @Override
+      public List<Entity> run(LuceneDatastoreImpl shard) {
+        return shard.getAllEntities();
+      }
+    })) {
+      l.addAll(r);
+    }
+    return l;
+  }
+
+  @Override
+  public EntityCursor iterateEntities(final String query) {
+    return new ShardsCursor() {
+      @Override
+      EntityCursor open(LuceneDatastoreImpl shard) {
+        return shard.iterateEntities(query);
+      }
+    };
+  }
+
+  @Override
+  public EntityCursor iterateAllEntities() {
+    return new ShardsCursor() {
+      @Override
+      EntityCursor open(LuceneDatastoreImpl shard) {
+        return shard.iterateAllEntities();
+      }
+    };
+  }
+
+  /** iterates over the shards one after the other, a shard cursor is opened only when the previous one is exhausted */
+  private abstract class ShardsCursor implements EntityCursor {
+    private int _next = 0;
+    private EntityCursor _current = null;
+
+    abstract EntityCursor open(LuceneDatastoreImpl shard);
+
+    @Override
+    public boolean hasNext() {
+      while (_current == null || !_current.hasNext()) {
+        if (_current != null) {
+          _current.close();
+          _current = null;
+        }
+        if (_next >= _shards.length) {
+          return false;
+        }
+        _current = open(_shards[_next++]);
+      }
+      return true;
+    }
+
+    @Override
+    public Entity next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return _current.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      if (_current != null) {
+        _current.close();
+        _current = null;
+      }
+      _next = _shards.length;
+    }
+  }
+
+  @Override
+  public ShardedLuceneDatastore createAndSaveEntity(Map<String, String> m) {
+    Entity e = this.createEntity();
+    for (String propertyName : m.keySet()) {
+      e.setProperty(propertyName, m.get(propertyName));
+    }
+    if (!m.containsKey("created")) { e.setProperty("created", new Date().toString()); }
+    this.put(e);
+    return this;
+  }
+
+  @Override
+  public Entity searchEntity(String query) {
+    return this.searchEntities(query).get(0);
+  }
+
+  /** commits all shards */
+  public ShardedLuceneDatastore commit() {
+    for (LuceneDatastoreImpl shard : _shards) {
+      shard.commit();
+    }
+    return this;
+  }
+
+  public void close() {
+    _executor.shutdown();
+    for (LuceneDatastoreImpl shard : _shards) {
+      shard.close();
+    }
+  }
+
+  /** closes the shards opened for a sharded datastore which cannot be created, the errors are ignored */
+  static void closeShards(List<LuceneDatastoreImpl> shards) {
+    for (LuceneDatastoreImpl shard : shards) {
+      try {
+        shard.close();
+      } catch (RuntimeException e) {
+        // the shard is not usable anyway
+      }
+    }
+  }
+
+}
@@ -0,0 +1,177 @@
+package methostore.impl.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import methostore.Aggregation;
+
+/**
+ * facets and statistics computed by {@link MemoryDatastore#aggregate(methostore.Query, Aggregation)}
+ * directly on the stored entities, without copying them.
+ */
+public class MemoryAggregation implements Aggregation {
+
+  static class MemoryStats implements Stats {
+    long _count = 0;
+    double _sum = 0;
+    double _min = Double.POSITIVE_INFINITY;
+    double _max = Double.NEGATIVE_INFINITY;
+
+    void add(double value) {
+      _count++;
+      _sum += value;
+      if (value < _min) {
+        _min = value;
+      }
+      if (value > _max) {
+        _max = value;
+      }
+    }
+
+    @Override
+    public long getCount() {
+      return _count;
+    }
+
+    @Override
+    public double getSum() {
+      return _sum;
+    }
+
+    @Override
+    public double getMin() {
+      return _count == 0 ? Double.NaN : _min;
+    }
+
+    @Override
+    public double getMax() {
+      return _count == 0 ? Double.NaN : _max;
+    }
+
+    @Override
+    public double getAverage() {
+      return _count == 0 ? Double.NaN : _sum / _count;
+    }
+
+    @Override
+    public String toString() {
+      return "count="+getCount()+" sum="+getSum()+" min="+getMin()+" max="+getMax()+" avg="+getAverage();
+    }
+  }
+
+  private final Set<String> _facetProperties = new LinkedHashSet<String>();
+  private final Set<String> _statsProperties = new LinkedHashSet<String>();
+
+  // the results
+  private int _count = 0;
+  private final Map<String, Map<String, Integer>> _facets = new HashMap<String, Map<String, Integer>>();
+  private final Map<String, MemoryStats> _stats = new HashMap<String, MemoryStats>();
+
+  @Override
+  public MemoryAggregation addFacet(String property) {
+    _facetProperties.add(property);
+    return this;
+  }
+
+  @Override
+  public MemoryAggregation addStats(String property) {
+    _statsProperties.add(property);
+    return this;
+  }
+
+  /** checks the types of the properties and resets the results */
+  void clear(Map<String, Byte> types) {
+    for (String p : _facetProperties) {
+      Byte type = types.get(p);
+      if (type != null && type != MemoryEntity.KEYWORD) {
+        throw new IllegalArgumentException("cannot facet on the non-keyword property "+p);
+      }
+    }
+    for (String p : _statsProperties) {
+      Byte type = types.get(p);
+      if (type != null && type != MemoryEntity.LONG && type != MemoryEntity.DOUBLE) {
+        throw new IllegalArgumentException("cannot compute statistics on the non-numeric property "+p);
+      }
+    }
+    _count = 0;
+    _facets.clear();
+    _stats.clear();
+    for (String p : _facetProperties) {
+      _facets.put(p, new HashMap<String, Integer>());
+    }
+    for (String p : _statsProperties) {
+      _stats.put(p, new MemoryStats());
+    }
+  }
+
+  /** adds a matching entity */
+  void collect(MemoryEntity e) {
+    _count++;
+    for (Map.Entry<String, Map<String, Integer>> facet : _facets.entrySet()) {
+      int i = e.indexOf(facet.getKey());
+      if (i >= 0 && e.type(i) == MemoryEntity.KEYWORD) {
+        Integer previous = facet.getValue().get(e.string(i));
+        facet.getValue().put(e.string(i), previous == null ? 1 : previous + 1);
+      }
+    }
+    for (Map.Entry<String, MemoryStats> stats : _stats.entrySet()) {
+      int i = e.indexOf(stats.getKey());
+      if (i >= 0 && e.type(i) == MemoryEntity.LONG) {
+        stats.getValue().add(e.value(i));
+      } else if (i >= 0 && e.type(i) == MemoryEntity.DOUBLE) {
+        stats.getValue().add(Double.longBitsToDouble(e.value(i)));
+      }
+    }
+  }
+
+  @Override
+  public int getCount() {
+    return _count;
+  }
+
+  @Override
+  public Map<String, Integer> getFacet(String property) {
+    Map<String, Integer> counts = _facets.get(property);
+    if (counts == null) {
+      return null;
+    }
+    List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+        int c = e2.getValue().compareTo(e1.getValue());
+        return c != 0 ? c : e1.getKey().compareTo(e2.getKey());
+      }
+    });
+    Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, Integer> e : entries) {
+      result.put(e.getKey(), e.getValue());
+    }
+    return result;
+  }
+
+  @Override
+  public Stats getStats(String property) {
+    return _stats.get(property);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("count=").append(_count);
+    for (String p : _facetProperties) {
+      sb.append(", ").append(p).append("=").append(getFacet(p));
+    }
+    for (String p : _statsProperties) {
+      sb.append(", ").append(p).append(": ").append(getStats(p));
+    }
+    return sb.toString();
+  }
+
+}
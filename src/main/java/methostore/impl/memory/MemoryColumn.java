@@ -0,0 +1,80 @@
+package methostore.impl.memory;
+
+/**
+ * the values of a numeric property by slot, in chunks of primitive longs (the raw bits of doubles).
+ *
+ * A range is scanned without boxing nor looking at the entities. The chunks are never copied,
+ * hence a value written before the entity is published is seen by the scans; the slots without
+ * the property hold stale values, the candidates of a scan are checked against the entities.
+ */
+// this class must remain package visible
+class MemoryColumn {
+
+  static final int CHUNK_BITS = 12;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private volatile long[][] _chunks = new long[0][];
+
+  void set(int slot, long value) {
+    long[][] chunks = _chunks;
+    int c = slot >>> CHUNK_BITS;
+    if (c >= chunks.length || chunks[c] == null) {
+      chunks = grow(c);
+    }
+    chunks[c][slot & CHUNK_MASK] = value;
+  }
+
+  private synchronized long[][] grow(int c) {
+    long[][] chunks = _chunks;
+    if (c >= chunks.length) {
+      long[][] bigger = new long[Math.max(c + 1, chunks.length * 2)][];
+      System.arraycopy(chunks, 0, bigger, 0, chunks.length);
+      chunks = bigger;
+    }
+    if (chunks[c] == null) {
+      chunks[c] = new long[CHUNK_SIZE];
+    }
+    _chunks = chunks;
+    return chunks;
+  }
+
+  /** adds the slots lower than maxSlot whose long value is in [min, max] */
+  void scanLong(long min, long max, int maxSlot, MemorySlots out) {
+    long[][] chunks = _chunks;
+    for (int c = 0; c < chunks.length && (c << CHUNK_BITS) < maxSlot; c++) {
+      long[] chunk = chunks[c];
+      if (chunk == null) {
+        continue;
+      }
+      int base = c << CHUNK_BITS;
+      int n = Math.min(CHUNK_SIZE, maxSlot - base);
+      for (int i = 0; i < n; i++) {
+        long v = chunk[i];
+        if (v >= min && v <= max) {
+          out.add(base + i);
+        }
+      }
+    }
+  }
+
+  /** adds the slots lower than maxSlot whose double value is in [min, max] */
+  void scanDouble(double min, double max, int maxSlot, MemorySlots out) {
+    long[][] chunks = _chunks;
+    for (int c = 0; c < chunks.length && (c << CHUNK_BITS) < maxSlot; c++) {
+      long[] chunk = chunks[c];
+      if (chunk == null) {
+        continue;
+      }
+      int base = c << CHUNK_BITS;
+      int n = Math.min(CHUNK_SIZE, maxSlot - base);
+      for (int i = 0; i < n; i++) {
+        double v = Double.longBitsToDouble(chunk[i]);
+        if (v >= min && v <= max) {
+          out.add(base + i);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,601 @@
+package methostore.impl.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+
+import methostore.Aggregation;
+import methostore.Datastore;
+import methostore.Entity;
+import methostore.EntityCursor;
+import methostore.Query;
+
+/**
+ * A datastore keeping the entities in the heap, for small to medium hot datasets, without analysis nor serialization.
+ *
+ * Each stored entity has a slot. The terms of the string and keyword properties are indexed in hash postings
+ * (property, term) -&gt; slots, which answer {@link #searchEntities(Map)} and the structured queries,
+ * and the numeric properties are kept in primitive columns by slot, scanned for the ranges.
+ * The writes of the same ID are serialized by one of the lock stripes, the reads take no lock: the stored entities
+ * are immutable copies, and the candidates given by the indexes are checked against them.
+ * Nothing is persisted, put and delete are visible as soon as they return.
+ *
+ * Instances are obtained with {@link MemoryDatastoreFactory}.
+ */
+public class MemoryDatastore implements Datastore {
+
+  private static final String DEFAULT_FIELD = "content";
+
+  /** serialize the writes by ID */
+  private final Object[] _stripes;
+
+  private final ConcurrentHashMap<String, MemoryEntity> _byId = new ConcurrentHashMap<String, MemoryEntity>();
+
+  /** the stored entities by slot, in chunks which are never copied */
+  private volatile AtomicReferenceArray<MemoryEntity>[] _table = newTable(0);
+  private final Object _slotLock = new Object();
+  /** the number of slots ever allocated, the scans stop there */
+  private volatile int _maxSlot = 0;
+  private int[] _freeSlots = new int[16];
+  private int _freeCount = 0;
+
+  /** property -&gt; term -&gt; slots */
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<Integer>>> _postings = new ConcurrentHashMap<String, ConcurrentHashMap<String, Set<Integer>>>();
+  private final ConcurrentHashMap<String, MemoryColumn> _columns = new ConcurrentHashMap<String, MemoryColumn>();
+  /** the last type of each property, e.g. to sort */
+  private final ConcurrentHashMap<String, Byte> _types = new ConcurrentHashMap<String, Byte>();
+
+  /** incremented after each write, read before each read: the column values of the previous writes are then visible */
+  private final AtomicLong _writes = new AtomicLong();
+
+  // the system property is read once, not for every query
+  private int _maxResults = Integer.getInteger("methostore.maxresults", 500);
+
+  // clients must use the factory
+  MemoryDatastore(int lockStripes) {
+    if (lockStripes < 1) {
+      throw new IllegalArgumentException();
+    }
+    this._stripes = new Object[lockStripes];
+    for (int i = 0; i < lockStripes; i++) {
+      this._stripes[i] = new Object();
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static AtomicReferenceArray<MemoryEntity>[] newTable(int chunks) {
+    return new AtomicReferenceArray[chunks];
+  }
+
+  private Object stripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    return this._stripes[(h & 0x7fffffff) % this._stripes.length];
+  }
+
+  private static MemoryEntity cast(Entity e) {
+    if (!(e instanceof MemoryEntity)) {
+      throw new IllegalArgumentException("not an entity of the in-memory datastore: "+e);
+    }
+    return (MemoryEntity) e;
+  }
+
+  // the slots
+
+  private int allocate() {
+    synchronized (this._slotLock) {
+      if (this._freeCount > 0) {
+        return this._freeSlots[--this._freeCount];
+      }
+      int slot = this._maxSlot;
+      int c = slot >>> MemoryColumn.CHUNK_BITS;
+      AtomicReferenceArray<MemoryEntity>[] table = this._table;
+      if (c >= table.length) {
+        AtomicReferenceArray<MemoryEntity>[] bigger = newTable(Math.max(c + 1, table.length * 2));
+        System.arraycopy(table, 0, bigger, 0, table.length);
+        for (int i = table.length; i < bigger.length; i++) {
+          bigger[i] = new AtomicReferenceArray<MemoryEntity>(MemoryColumn.CHUNK_SIZE);
+        }
+        this._table = bigger;
+      }
+      this._maxSlot = slot + 1;
+      return slot;
+    }
+  }
+
+  private void free(int slot) {
+    synchronized (this._slotLock) {
+      if (this._freeCount == this._freeSlots.length) {
+        int[] bigger = new int[this._freeCount * 2];
+        System.arraycopy(this._freeSlots, 0, bigger, 0, this._freeCount);
+        this._freeSlots = bigger;
+      }
+      this._freeSlots[this._freeCount++] = slot;
+    }
+  }
+
+  private void setSlot(int slot, MemoryEntity e) {
+    this._table[slot >>> MemoryColumn.CHUNK_BITS].set(slot & MemoryColumn.CHUNK_MASK, e);
+  }
+
+  /** returns the entity stored in the slot, null if none */
+  private MemoryEntity slot(AtomicReferenceArray<MemoryEntity>[] table, int slot) {
+    return table[slot >>> MemoryColumn.CHUNK_BITS].get(slot & MemoryColumn.CHUNK_MASK);
+  }
+
+  // the indexes
+
+  private static final class AddSlot implements BiFunction<String, Set<Integer>, Set<Integer>> {
+    private final int _slot;
+    AddSlot(int slot) {
+      this._slot = slot;
+    }
+    @Override
+    public Set<Integer> apply(String term, Set<Integer> slots) {
+      if (slots == null) {
+        slots = ConcurrentHashMap.<Integer>newKeySet();
+      }
+      slots.add(this._slot);
+      return slots;
+    }
+  }
+
+  private static final class RemoveSlot implements BiFunction<String, Set<Integer>, Set<Integer>> {
+    private final int _slot;
+    RemoveSlot(int slot) {
+      this._slot = slot;
+    }
+    @Override
+    public Set<Integer> apply(String term, Set<Integer> slots) {
+      slots.remove(this._slot);
+      // the term disappears with its last entity
+      return slots.isEmpty() ? null : slots;
+    }
+  }
+
+  /** returns the terms of a string or keyword property, null for the ID and the numeric properties */
+  private static Set<String> terms(MemoryEntity e, int i) {
+    if (MemoryEntity.ID.equals(e.name(i))) {
+      return null;
+    }
+    switch (e.type(i)) {
+    case MemoryEntity.KEYWORD: return Collections.singleton(e.string(i));
+    case MemoryEntity.STRING:
+      Set<String> tokens = new HashSet<String>();
+      MemoryQuery.tokens(e.string(i), tokens);
+      return tokens;
+    default: return null;
+    }
+  }
+
+  private void index(MemoryEntity e) {
+    for (int i = 0; i < e.size(); i++) {
+      String name = e.name(i);
+      byte type = e.type(i);
+      Byte previous = this._types.get(name);
+      if (previous == null || previous != type) {
+        this._types.put(name, type);
+      }
+      if (type == MemoryEntity.LONG || type == MemoryEntity.DOUBLE) {
+        MemoryColumn column = this._columns.get(name);
+        if (column == null) {
+          MemoryColumn c = this._columns.putIfAbsent(name, column = new MemoryColumn());
+          column = c != null ? c : column;
+        }
+        column.set(e._slot, e.value(i));
+        continue;
+      }
+      Set<String> terms = terms(e, i);
+      if (terms == null) {
+        continue;
+      }
+      ConcurrentHashMap<String, Set<Integer>> postings = this._postings.get(name);
+      if (postings == null) {
+        ConcurrentHashMap<String, Set<Integer>> p = this._postings.putIfAbsent(name, postings = new ConcurrentHashMap<String, Set<Integer>>());
+        postings = p != null ? p : postings;
+      }
+      AddSlot add = new AddSlot(e._slot);
+      for (String term : terms) {
+        postings.compute(term, add);
+      }
+    }
+  }
+
+  /** removes the postings of old which are not the ones of current (null for a deletion) */
+  private void unindex(MemoryEntity old, MemoryEntity current) {
+    RemoveSlot remove = new RemoveSlot(old._slot);
+    for (int i = 0; i < old.size(); i++) {
+      Set<String> terms = terms(old, i);
+      if (terms == null) {
+        continue;
+      }
+      Set<String> kept = null;
+      if (current != null) {
+        int j = current.indexOf(old.name(i));
+        kept = j < 0 ? null : terms(current, j);
+      }
+      ConcurrentHashMap<String, Set<Integer>> postings = this._postings.get(old.name(i));
+      for (String term : terms) {
+        if (postings != null && (kept == null || !kept.contains(term))) {
+          postings.computeIfPresent(term, remove);
+        }
+      }
+    }
+  }
+
+  /** adds the slots of the term to slots */
+  void postings(String field, String term, MemorySlots slots) {
+    if (MemoryEntity.ID.equals(field)) {
+      MemoryEntity e = this._byId.get(term);
+      if (e != null) {
+        slots.add(e._slot);
+      }
+      return;
+    }
+    ConcurrentHashMap<String, Set<Integer>> postings = this._postings.get(field);
+    Set<Integer> s = postings == null ? null : postings.get(term);
+    if (s != null) {
+      for (Integer slot : s) {
+        slots.add(slot);
+      }
+    }
+  }
+
+  /** returns the slots of the terms starting with prefix, null for the ID (all slots are scanned) */
+  MemorySlots prefixPostings(String field, String prefix) {
+    if (MemoryEntity.ID.equals(field)) {
+      return null;
+    }
+    MemorySlots slots = new MemorySlots(16);
+    ConcurrentHashMap<String, Set<Integer>> postings = this._postings.get(field);
+    if (postings != null) {
+      for (Map.Entry<String, Set<Integer>> e : postings.entrySet()) {
+        if (e.getKey().startsWith(prefix)) {
+          for (Integer slot : e.getValue()) {
+            slots.add(slot);
+          }
+        }
+      }
+    }
+    return slots;
+  }
+
+  MemorySlots scanLong(String field, long min, long max) {
+    MemorySlots slots = new MemorySlots(16);
+    MemoryColumn column = this._columns.get(field);
+    if (column != null) {
+      column.scanLong(min, max, this._maxSlot, slots);
+    }
+    return slots;
+  }
+
+  MemorySlots scanDouble(String field, double min, double max) {
+    MemorySlots slots = new MemorySlots(16);
+    MemoryColumn column = this._columns.get(field);
+    if (column != null) {
+      column.scanDouble(min, max, this._maxSlot, slots);
+    }
+    return slots;
+  }
+
+  // the writes
+
+  @Override
+  public MemoryEntity createEntity() {
+    return new MemoryEntity();
+  }
+
+  @Override
+  public MemoryDatastore put(Entity e) {
+    if (e == null) {
+      throw new IllegalArgumentException();
+    }
+    MemoryEntity stored = cast(e).copy(null);
+    String id = stored.getId();
+    synchronized (this.stripe(id)) {
+      MemoryEntity old = this._byId.get(id);
+      stored._slot = old != null ? old._slot : this.allocate();
+      // the new postings are added before the old ones are removed, a concurrent reader does not miss the entity
+      this.index(stored);
+      this.setSlot(stored._slot, stored);
+      this._byId.put(id, stored);
+      if (old != null) {
+        this.unindex(old, stored);
+      }
+    }
+    this._writes.incrementAndGet();
+    return this;
+  }
+
+  @Override
+  public MemoryDatastore putAll(Iterable<Entity> entities) {
+    if (entities == null) {
+      throw new IllegalArgumentException();
+    }
+    for (Entity e : entities) {
+      this.put(e);
+    }
+    return this;
+  }
+
+  /** removes the entity if it is still the given one (e.g. a match of a deletion by query), or any if expected is null */
+  private void remove(String id, MemoryEntity expected) {
+    synchronized (this.stripe(id)) {
+      MemoryEntity old = this._byId.get(id);
+      if (old == null || (expected != null && old != expected)) {
+        return;
+      }
+      this._byId.remove(id);
+      this.unindex(old, null);
+      this.setSlot(old._slot, null);
+      this.free(old._slot);
+    }
+    this._writes.incrementAndGet();
+  }
+
+  @Override
+  public MemoryDatastore delete(Entity e) {
+    this.remove(e.getId(), null);
+    return this;
+  }
+
+  @Override
+  public MemoryDatastore deleteAll(Collection<String> ids) {
+    for (String id : ids) {
+      this.remove(id, null);
+    }
+    return this;
+  }
+
+  @Override
+  public MemoryDatastore deleteByQuery(String query) {
+    for (MemoryEntity e : this.match(MemoryQuery.parse(query, DEFAULT_FIELD), Integer.MAX_VALUE)) {
+      this.remove(e.getId(), e);
+    }
+    return this;
+  }
+
+  @Override
+  public MemoryDatastore createAndSaveEntity(Map<String, String> m) {
+    Entity e = this.createEntity();
+    for (String propertyName : m.keySet()) {
+      e.setProperty(propertyName, m.get(propertyName));
+    }
+    if (!m.containsKey("created")) { e.setProperty("created", new Date().toString()); }
+    this.put(e);
+    return this;
+  }
+
+  // the reads
+
+  /** returns the stored entities matching the query, at most max ones (after sorting) */
+  private List<MemoryEntity> match(MemoryQuery q, int max) {
+    // the columns written before are visible
+    this._writes.get();
+    Comparator<MemoryEntity> comparator = q.comparator(this._types);
+    int limit = comparator == null ? max : Integer.MAX_VALUE;
+    List<MemoryEntity> result = new ArrayList<MemoryEntity>();
+    AtomicReferenceArray<MemoryEntity>[] table = this._table;
+    MemorySlots candidates = q.candidates(this);
+    if (candidates != null) {
+      candidates.sortUnique();
+      for (int i = 0; i < candidates.size() && result.size() < limit; i++) {
+        int slot = candidates.get(i);
+        // a slot allocated after the table was read
+        MemoryEntity e = slot >>> MemoryColumn.CHUNK_BITS < table.length ? this.slot(table, slot) : null;
+        if (e != null && q.matches(e)) {
+          result.add(e);
+        }
+      }
+    } else {
+      int maxSlot = Math.min(this._maxSlot, table.length << MemoryColumn.CHUNK_BITS);
+      for (int slot = 0; slot < maxSlot && result.size() < limit; slot++) {
+        MemoryEntity e = this.slot(table, slot);
+        if (e != null && q.matches(e)) {
+          result.add(e);
+        }
+      }
+    }
+    if (comparator != null) {
+      Collections.sort(result, comparator);
+      if (result.size() > max) {
+        result = result.subList(0, max);
+      }
+    }
+    return result;
+  }
+
+  private static List<Entity> copies(List<MemoryEntity> stored, Set<String> properties) {
+    List<Entity> l = new ArrayList<Entity>(stored.size());
+    for (MemoryEntity e : stored) {
+      l.add(e.copy(properties));
+    }
+    return l;
+  }
+
+  @Override
+  public MemoryEntity get(String id) {
+    return this.get(id, (Set<String>) null);
+  }
+
+  /** properties null means all properties */
+  @Override
+  public MemoryEntity get(String id, Set<String> properties) {
+    MemoryEntity e = this._byId.get(id);
+    if (e == null) {
+      throw new NoSuchElementException(id);
+    }
+    return e.copy(properties);
+  }
+
+  @Override
+  public Map<String, Entity> getAll(Collection<String> ids) {
+    Map<String, Entity> result = new HashMap<String, Entity>();
+    for (String id : ids) {
+      MemoryEntity e = this._byId.get(id);
+      if (e != null) {
+        result.put(id, e.copy(null));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean exists(String id) {
+    return this._byId.containsKey(id);
+  }
+
+  @Override
+  public int size() {
+    return this._byId.size();
+  }
+
+  @Override
+  public MemoryQuery createQuery() {
+    return new MemoryQuery();
+  }
+
+  private static MemoryQuery cast(Query q) {
+    if (!(q instanceof MemoryQuery)) {
+      throw new IllegalArgumentException("not a query of the in-memory datastore: "+q);
+    }
+    return (MemoryQuery) q;
+  }
+
+  @Override
+  public List<Entity> searchEntities(Query query) {
+    return copies(this.match(cast(query), this._maxResults), null);
+  }
+
+  @Override
+  public List<Entity> searchEntities(Map<String, String> query) {
+    return copies(this.match(toQuery(query), this._maxResults), null);
+  }
+
+  @Override
+  public List<Entity> searchEntities(String query) {
+    return this.searchEntities(query, null);
+  }
+
+  /** the query language is a subset of Lucene's one, see {@link MemoryQuery#parse(String, String)} */
+  @Override
+  public List<Entity> searchEntities(String query, Set<String> properties) {
+    return copies(this.match(MemoryQuery.parse(query, DEFAULT_FIELD), this._maxResults), properties);
+  }
+
+  @Override
+  public Entity searchEntity(String query) {
+    return this.searchEntities(query).get(0);
+  }
+
+  private MemoryQuery toQuery(Map<String, String> m) {
+    MemoryQuery q = this.createQuery();
+    for (Map.Entry<String, String> e : m.entrySet()) {
+      q.addItem(e.getKey(), e.getValue());
+    }
+    return q;
+  }
+
+  @Override
+  public int count(String query) {
+    return this.match(MemoryQuery.parse(query, DEFAULT_FIELD), Integer.MAX_VALUE).size();
+  }
+
+  @Override
+  public int count(Map<String, String> query) {
+    return this.match(toQuery(query), Integer.MAX_VALUE).size();
+  }
+
+  @Override
+  public MemoryAggregation createAggregation() {
+    return new MemoryAggregation();
+  }
+
+  @Override
+  public MemoryAggregation aggregate(Query query, Aggregation aggregation) {
+    if (!(aggregation instanceof MemoryAggregation)) {
+      throw new IllegalArgumentException("not an aggregation of the in-memory datastore: "+aggregation);
+    }
+    MemoryAggregation a = (MemoryAggregation) aggregation;
+    a.clear(this._types);
+    for (MemoryEntity e : this.match(cast(query), Integer.MAX_VALUE)) {
+      a.collect(e);
+    }
+    return a;
+  }
+
+  @Override
+  public MemoryAggregation aggregate(String query, Aggregation aggregation) {
+    return this.aggregate(MemoryQuery.parse(query, DEFAULT_FIELD), aggregation);
+  }
+
+  @Override
+  public List<Entity> getAllEntities() {
+    return copies(this.match(this.createQuery(), Integer.MAX_VALUE), null);
+  }
+
+  @Override
+  public EntityCursor iterateEntities(String query) {
+    return new Cursor(this.match(MemoryQuery.parse(query, DEFAULT_FIELD), Integer.MAX_VALUE));
+  }
+
+  @Override
+  public EntityCursor iterateAllEntities() {
+    return new Cursor(this.match(this.createQuery(), Integer.MAX_VALUE));
+  }
+
+  /** copies the matching entities one by one, the stored ones are immutable */
+  private static class Cursor implements EntityCursor {
+    private List<MemoryEntity> _entities;
+    private int _next = 0;
+
+    Cursor(List<MemoryEntity> entities) {
+      this._entities = entities;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this._entities != null && this._next < this._entities.size();
+    }
+
+    @Override
+    public Entity next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return this._entities.get(this._next++).copy(null);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      this._entities = null;
+    }
+  }
+
+  /** sets the max number of results of a search, like the system property methostore.maxresults */
+  public MemoryDatastore setMaxResults(int maxResults) {
+    if (maxResults < 1) {
+      throw new IllegalArgumentException();
+    }
+    this._maxResults = maxResults;
+    return this;
+  }
+
+}
@@ -0,0 +1,18 @@
+package methostore.impl.memory;
+
+public class MemoryDatastoreFactory {
+
+  /** MemoryDatastoreFactory is not meant to be used as an object */
+  private MemoryDatastoreFactory() {}
+
+  /** returns an empty in-memory datastore, with 64 lock stripes */
+  public static MemoryDatastore createDatastore() {
+    return new MemoryDatastore(64);
+  }
+
+  /** returns an empty in-memory datastore, whose writes are serialized by lockStripes locks (the more, the more concurrent writes) */
+  public static MemoryDatastore createDatastore(int lockStripes) {
+    return new MemoryDatastore(lockStripes);
+  }
+
+}
@@ -0,0 +1,211 @@
+package methostore.impl.memory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+import methostore.Entity;
+
+/**
+ * an entity of the in-memory datastore, obtained with {@link MemoryDatastore#createEntity()}.
+ *
+ * The properties are kept in parallel arrays, the numeric values as primitive longs (the raw bits of doubles),
+ * so that an entity is copied with a few array copies. The datastore keeps its own copies, which are never modified.
+ */
+public class MemoryEntity implements Entity {
+
+  public static final String ID = "_key";
+
+  // the types of the properties
+  static final byte STRING = 1;
+  static final byte KEYWORD = 2;
+  static final byte LONG = 3;
+  static final byte DOUBLE = 4;
+
+  private String[] _names;
+  private byte[] _types;
+  /** the values of the string and keyword properties */
+  private String[] _strings;
+  /** the values of the numeric properties */
+  private long[] _values;
+  private int _size = 0;
+
+  /** the slot of a stored copy in the datastore, -1 otherwise */
+  int _slot = -1;
+
+  MemoryEntity() {
+    this(8);
+    this.set(ID, KEYWORD, UUID.randomUUID().toString(), 0);
+  }
+
+  private MemoryEntity(int capacity) {
+    this._names = new String[capacity];
+    this._types = new byte[capacity];
+    this._strings = new String[capacity];
+    this._values = new long[capacity];
+  }
+
+  /** returns a copy of the entity, with only the given properties (and the ID) if properties is not null */
+  MemoryEntity copy(Set<String> properties) {
+    MemoryEntity e = new MemoryEntity(Math.max(_size, 1));
+    for (int i = 0; i < _size; i++) {
+      if (properties == null || properties.contains(_names[i]) || ID.equals(_names[i])) {
+        e._names[e._size] = _names[i];
+        e._types[e._size] = _types[i];
+        e._strings[e._size] = _strings[i];
+        e._values[e._size] = _values[i];
+        e._size++;
+      }
+    }
+    return e;
+  }
+
+  private Entity set(String name, byte type, String string, long value) {
+    if (name == null || (type <= KEYWORD && string == null)) {
+      throw new IllegalArgumentException();
+    }
+    // contrary to Lucene, a property has a single value
+    int i = this.indexOf(name);
+    if (i < 0) {
+      if (_size == _names.length) {
+        int capacity = _size * 2;
+        _names = Arrays.copyOf(_names, capacity);
+        _types = Arrays.copyOf(_types, capacity);
+        _strings = Arrays.copyOf(_strings, capacity);
+        _values = Arrays.copyOf(_values, capacity);
+      }
+      i = _size++;
+      _names[i] = name;
+    }
+    _types[i] = type;
+    _strings[i] = string;
+    _values[i] = value;
+    return this;
+  }
+
+  int indexOf(String name) {
+    for (int i = 0; i < _size; i++) {
+      if (_names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  int size() {
+    return _size;
+  }
+
+  String name(int i) {
+    return _names[i];
+  }
+
+  byte type(int i) {
+    return _types[i];
+  }
+
+  String string(int i) {
+    return _strings[i];
+  }
+
+  /** the value of a long property, or the raw bits of a double property */
+  long value(int i) {
+    return _values[i];
+  }
+
+  @Override
+  public Entity setProperty(String name, String value) {
+    return this.set(name, ID.equals(name) ? KEYWORD : STRING, value, 0);
+  }
+
+  @Override
+  public Entity setPropertyAsKeyword(String name, String value) {
+    return this.set(name, KEYWORD, value, 0);
+  }
+
+  @Override
+  public Entity setPropertyAsLong(String name, long value) {
+    return this.set(name, LONG, null, value);
+  }
+
+  @Override
+  public Entity setPropertyAsDouble(String name, double value) {
+    return this.set(name, DOUBLE, null, Double.doubleToRawLongBits(value));
+  }
+
+  private int checkedIndexOf(String name) {
+    int i = this.indexOf(name);
+    if (i < 0) {
+      throw new NoSuchElementException(name + " in " + this.toString());
+    }
+    return i;
+  }
+
+  @Override
+  public String getId() {
+    return this.getProperty(ID);
+  }
+
+  /** the numeric properties are returned as strings, like with Lucene */
+  @Override
+  public String getProperty(String name) {
+    int i = this.checkedIndexOf(name);
+    switch (_types[i]) {
+    case LONG: return Long.toString(_values[i]);
+    case DOUBLE: return Double.toString(Double.longBitsToDouble(_values[i]));
+    default: return _strings[i];
+    }
+  }
+
+  @Override
+  public boolean hasProperty(String name) {
+    return this.indexOf(name) >= 0;
+  }
+
+  @Override
+  public long getLong(String name) {
+    int i = this.checkedIndexOf(name);
+    switch (_types[i]) {
+    case LONG: return _values[i];
+    case DOUBLE: return (long) Double.longBitsToDouble(_values[i]);
+    default: return Long.parseLong(_strings[i]);
+    }
+  }
+
+  @Override
+  public double getDouble(String name) {
+    int i = this.checkedIndexOf(name);
+    switch (_types[i]) {
+    case LONG: return _values[i];
+    case DOUBLE: return Double.longBitsToDouble(_values[i]);
+    default: return Double.parseDouble(_strings[i]);
+    }
+  }
+
+  @Override
+  public long getPropertyAsLong(String name) {
+    return this.getLong(name);
+  }
+
+  @Override
+  public double getPropertyAsDouble(String name) {
+    return this.getDouble(name);
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return Arrays.asList(Arrays.copyOf(_names, _size)).iterator();
+  }
+
+  @Override
+  public String toString() {
+    StringBuffer buffer = new StringBuffer();
+    for (int i = 0; i < _size; i++) {
+      buffer.append(_names[i] + ": " + this.getProperty(_names[i]) + "\n");
+    }
+    return buffer.toString();
+  }
+
+}
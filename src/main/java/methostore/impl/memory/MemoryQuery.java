@@ -0,0 +1,436 @@
+package methostore.impl.memory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import methostore.Query;
+
+/**
+ * a query of the in-memory datastore, instances are obtained with {@link MemoryDatastore#createQuery()}.
+ *
+ * The indexes of the datastore give candidate slots for the clauses (postings for the terms and prefixes,
+ * column scans for the ranges), the smallest set of candidates is then checked against the entities.
+ * The terms of a string property are the ones of Lucene's WhitespaceAnalyzer, a keyword property is a single term.
+ */
+public class MemoryQuery implements Query {
+
+  /** a query item, matching an entity on its own */
+  abstract static class Clause {
+    abstract boolean matches(MemoryEntity e);
+
+    /** returns a superset of the matching slots, null if the clause cannot be answered by an index */
+    MemorySlots candidates(MemoryDatastore ds) {
+      return null;
+    }
+  }
+
+  private final List<Clause> _must = new ArrayList<Clause>();
+  private final List<MemoryQuery> _not = new ArrayList<MemoryQuery>();
+  private final List<String> _sortFields = new ArrayList<String>();
+  private final List<Boolean> _sortDescending = new ArrayList<Boolean>();
+
+  MemoryQuery() {
+  }
+
+  private MemoryQuery add(Clause c) {
+    _must.add(c);
+    return this;
+  }
+
+  @Override
+  public MemoryQuery addItem(final String field, final String value) {
+    return this.add(new Clause() {
+      @Override
+      boolean matches(MemoryEntity e) {
+        int i = e.indexOf(field);
+        if (i < 0) {
+          return false;
+        }
+        switch (e.type(i)) {
+        case MemoryEntity.STRING: return hasToken(e.string(i), value, false);
+        case MemoryEntity.KEYWORD: return e.string(i).equals(value);
+        default: return false;
+        }
+      }
+
+      @Override
+      MemorySlots candidates(MemoryDatastore ds) {
+        MemorySlots slots = new MemorySlots(16);
+        ds.postings(field, value, slots);
+        return slots;
+      }
+
+      @Override
+      public String toString() {
+        return field+":"+value;
+      }
+    });
+  }
+
+  /** the same as addItem, there is no relevance */
+  @Override
+  public MemoryQuery addFilter(String field, String value) {
+    return this.addItem(field, value);
+  }
+
+  @Override
+  public MemoryQuery addPrefix(final String field, final String prefix) {
+    return this.add(new Clause() {
+      @Override
+      boolean matches(MemoryEntity e) {
+        int i = e.indexOf(field);
+        if (i < 0) {
+          return false;
+        }
+        switch (e.type(i)) {
+        case MemoryEntity.STRING: return hasToken(e.string(i), prefix, true);
+        case MemoryEntity.KEYWORD: return e.string(i).startsWith(prefix);
+        default: return false;
+        }
+      }
+
+      @Override
+      MemorySlots candidates(MemoryDatastore ds) {
+        return ds.prefixPostings(field, prefix);
+      }
+
+      @Override
+      public String toString() {
+        return field+":"+prefix+"*";
+      }
+    });
+  }
+
+  @Override
+  public MemoryQuery addRange(final String field, final long min, final long max) {
+    return this.add(new Clause() {
+      @Override
+      boolean matches(MemoryEntity e) {
+        int i = e.indexOf(field);
+        return i >= 0 && e.type(i) == MemoryEntity.LONG && e.value(i) >= min && e.value(i) <= max;
+      }
+
+      @Override
+      MemorySlots candidates(MemoryDatastore ds) {
+        return ds.scanLong(field, min, max);
+      }
+
+      @Override
+      public String toString() {
+        return field+":["+min+" TO "+max+"]";
+      }
+    });
+  }
+
+  @Override
+  public MemoryQuery addRange(final String field, final double min, final double max) {
+    return this.add(new Clause() {
+      @Override
+      boolean matches(MemoryEntity e) {
+        int i = e.indexOf(field);
+        if (i < 0 || e.type(i) != MemoryEntity.DOUBLE) {
+          return false;
+        }
+        double v = Double.longBitsToDouble(e.value(i));
+        return v >= min && v <= max;
+      }
+
+      @Override
+      MemorySlots candidates(MemoryDatastore ds) {
+        return ds.scanDouble(field, min, max);
+      }
+
+      @Override
+      public String toString() {
+        return field+":["+min+" TO "+max+"]";
+      }
+    });
+  }
+
+  @Override
+  public MemoryQuery addRangeFilter(String field, long min, long max) {
+    return this.addRange(field, min, max);
+  }
+
+  @Override
+  public MemoryQuery addRangeFilter(String field, double min, double max) {
+    return this.addRange(field, min, max);
+  }
+
+  @Override
+  public MemoryQuery orderBy(String field, boolean descending) {
+    _sortFields.add(field);
+    _sortDescending.add(descending);
+    return this;
+  }
+
+  @Override
+  public MemoryQuery addNot(Query q) {
+    _not.add(cast(q));
+    return this;
+  }
+
+  @Override
+  public MemoryQuery addAnyOf(Query... alternatives) {
+    final MemoryQuery[] queries = new MemoryQuery[alternatives.length];
+    for (int i = 0; i < alternatives.length; i++) {
+      queries[i] = cast(alternatives[i]);
+    }
+    return this.add(new Clause() {
+      @Override
+      boolean matches(MemoryEntity e) {
+        for (MemoryQuery q : queries) {
+          if (q.matches(e)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      MemorySlots candidates(MemoryDatastore ds) {
+        MemorySlots union = new MemorySlots(16);
+        for (MemoryQuery q : queries) {
+          MemorySlots slots = q.candidates(ds);
+          if (slots == null) {
+            return null;
+          }
+          for (int i = 0; i < slots.size(); i++) {
+            union.add(slots.get(i));
+          }
+        }
+        return union;
+      }
+
+      @Override
+      public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (MemoryQuery q : queries) {
+          sb.append(sb.length() > 1 ? " OR " : "").append(q);
+        }
+        return sb.append(")").toString();
+      }
+    });
+  }
+
+  private static MemoryQuery cast(Query q) {
+    if (!(q instanceof MemoryQuery)) {
+      throw new IllegalArgumentException("not a query of the in-memory datastore: "+q);
+    }
+    return (MemoryQuery) q;
+  }
+
+  boolean matches(MemoryEntity e) {
+    for (Clause c : _must) {
+      if (!c.matches(e)) {
+        return false;
+      }
+    }
+    for (MemoryQuery q : _not) {
+      if (q.matches(e)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** returns the smallest set of candidates of the clauses, null if all slots must be checked */
+  MemorySlots candidates(MemoryDatastore ds) {
+    MemorySlots best = null;
+    for (Clause c : _must) {
+      MemorySlots slots = c.candidates(ds);
+      if (slots != null && (best == null || slots.size() < best.size())) {
+        best = slots;
+        if (best.size() == 0) {
+          break;
+        }
+      }
+    }
+    return best;
+  }
+
+  /** returns the order of the results, null if none; the types are the ones of the properties in the datastore */
+  Comparator<MemoryEntity> comparator(Map<String, Byte> types) {
+    if (_sortFields.isEmpty()) {
+      return null;
+    }
+    final int n = _sortFields.size();
+    final String[] fields = _sortFields.toArray(new String[n]);
+    final byte[] sortTypes = new byte[n];
+    final boolean[] descending = new boolean[n];
+    for (int k = 0; k < n; k++) {
+      Byte type = types.get(fields[k]);
+      if (type == null) {
+        throw new IllegalArgumentException("unknown property "+fields[k]);
+      }
+      if (type == MemoryEntity.STRING) {
+        throw new IllegalArgumentException("cannot sort on the analyzed property "+fields[k]);
+      }
+      sortTypes[k] = type;
+      descending[k] = _sortDescending.get(k);
+    }
+    return new Comparator<MemoryEntity>() {
+      @Override
+      public int compare(MemoryEntity e1, MemoryEntity e2) {
+        for (int k = 0; k < n; k++) {
+          int c = compareOn(e1, e2, fields[k], sortTypes[k]);
+          if (c != 0) {
+            return descending[k] ? -c : c;
+          }
+        }
+        return 0;
+      }
+    };
+  }
+
+  /** like Lucene's FieldCache, a missing numeric value is 0 and a missing keyword comes first */
+  private static int compareOn(MemoryEntity e1, MemoryEntity e2, String field, byte type) {
+    int i1 = e1.indexOf(field), i2 = e2.indexOf(field);
+    if (type == MemoryEntity.KEYWORD) {
+      String s1 = i1 < 0 || e1.type(i1) != type ? null : e1.string(i1);
+      String s2 = i2 < 0 || e2.type(i2) != type ? null : e2.string(i2);
+      if (s1 == null || s2 == null) {
+        return s1 == null ? (s2 == null ? 0 : -1) : 1;
+      }
+      return s1.compareTo(s2);
+    }
+    if (type == MemoryEntity.LONG) {
+      long v1 = i1 < 0 || e1.type(i1) != type ? 0 : e1.value(i1);
+      long v2 = i2 < 0 || e2.type(i2) != type ? 0 : e2.value(i2);
+      return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+    }
+    double v1 = i1 < 0 || e1.type(i1) != type ? 0 : Double.longBitsToDouble(e1.value(i1));
+    double v2 = i2 < 0 || e2.type(i2) != type ? 0 : Double.longBitsToDouble(e2.value(i2));
+    return Double.compare(v1, v2);
+  }
+
+  /** true if s has the whitespace-separated token (or a token starting with it) */
+  static boolean hasToken(String s, String token, boolean prefix) {
+    int length = s.length();
+    int i = 0;
+    while (i < length) {
+      while (i < length && Character.isWhitespace(s.charAt(i))) {
+        i++;
+      }
+      int start = i;
+      while (i < length && !Character.isWhitespace(s.charAt(i))) {
+        i++;
+      }
+      if (i > start && s.startsWith(token, start) && (prefix || i - start == token.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** adds the whitespace-separated tokens of s (the ones of Lucene's WhitespaceAnalyzer) to tokens */
+  static void tokens(String s, Set<String> tokens) {
+    int length = s.length();
+    int i = 0;
+    while (i < length) {
+      while (i < length && Character.isWhitespace(s.charAt(i))) {
+        i++;
+      }
+      int start = i;
+      while (i < length && !Character.isWhitespace(s.charAt(i))) {
+        i++;
+      }
+      if (i > start) {
+        tokens.add(s.substring(start, i));
+      }
+    }
+  }
+
+  /**
+   * parses a subset of the Lucene query syntax: whitespace-separated items field:value, field:prefix*,
+   * *:* and a value of the default field, prefixed by + (required) or - (prohibited), with the operators AND, OR and NOT.
+   * Like Lucene, if there is no required item, at least one of the others must match.
+   * Groups and phrases are not supported.
+   */
+  static MemoryQuery parse(String query, String defaultField) {
+    if (query.indexOf('(') >= 0 || query.indexOf('"') >= 0) {
+      throw new IllegalArgumentException("groups and phrases are not supported by the in-memory datastore: "+query);
+    }
+    List<MemoryQuery> items = new ArrayList<MemoryQuery>();
+    // 1 required, 0 optional, -1 prohibited
+    List<Integer> occurs = new ArrayList<Integer>();
+    int next = 0;
+    for (String item : query.trim().split("\\s+")) {
+      if (item.length() == 0 || item.equals("OR")) {
+        continue;
+      }
+      if (item.equals("AND")) {
+        if (!occurs.isEmpty() && occurs.get(occurs.size() - 1) == 0) {
+          occurs.set(occurs.size() - 1, 1);
+        }
+        next = 1;
+        continue;
+      }
+      if (item.equals("NOT")) {
+        next = -1;
+        continue;
+      }
+      int occur = next;
+      next = 0;
+      if (item.charAt(0) == '+' || item.charAt(0) == '-') {
+        occur = item.charAt(0) == '+' ? 1 : -1;
+        item = item.substring(1);
+      }
+      MemoryQuery q = new MemoryQuery();
+      if (!item.equals("*:*")) {
+        int colon = item.indexOf(':');
+        String field = colon > 0 ? item.substring(0, colon) : defaultField;
+        String value = colon > 0 ? item.substring(colon + 1) : item;
+        if (value.length() == 0) {
+          throw new IllegalArgumentException("no value in "+query);
+        }
+        if (value.endsWith("*")) {
+          q.addPrefix(field, value.substring(0, value.length() - 1));
+        } else {
+          q.addItem(field, value);
+        }
+      }
+      items.add(q);
+      occurs.add(occur);
+    }
+    MemoryQuery result = new MemoryQuery();
+    List<MemoryQuery> optional = new ArrayList<MemoryQuery>();
+    for (int k = 0; k < items.size(); k++) {
+      if (occurs.get(k) > 0) {
+        result._must.addAll(items.get(k)._must);
+      } else if (occurs.get(k) < 0) {
+        result._not.add(items.get(k));
+      } else {
+        optional.add(items.get(k));
+      }
+    }
+    // the optional items only change the relevance if there is a required one,
+    // and a query with only prohibited items matches nothing
+    if (!occurs.contains(1)) {
+      boolean matchAll = false;
+      for (MemoryQuery q : optional) {
+        matchAll |= q._must.isEmpty();
+      }
+      if (!matchAll) {
+        result.addAnyOf(optional.toArray(new MemoryQuery[optional.size()]));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Clause c : _must) {
+      sb.append(sb.length() > 0 ? " " : "").append("+").append(c);
+    }
+    for (MemoryQuery q : _not) {
+      sb.append(sb.length() > 0 ? " " : "").append("-(").append(q).append(")");
+    }
+    return sb.length() == 0 ? "*:*" : sb.toString();
+  }
+
+}
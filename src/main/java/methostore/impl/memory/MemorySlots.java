@@ -0,0 +1,44 @@
+package methostore.impl.memory;
+
+import java.util.Arrays;
+
+/** a growable list of slots, without boxing */
+// this class must remain package visible
+class MemorySlots {
+
+  private int[] _slots;
+  private int _size = 0;
+
+  MemorySlots(int capacity) {
+    this._slots = new int[Math.max(capacity, 4)];
+  }
+
+  void add(int slot) {
+    if (_size == _slots.length) {
+      _slots = Arrays.copyOf(_slots, _size * 2);
+    }
+    _slots[_size++] = slot;
+  }
+
+  int size() {
+    return _size;
+  }
+
+  int get(int i) {
+    return _slots[i];
+  }
+
+  /** sorts the slots and removes the duplicates (e.g. of a union) */
+  MemorySlots sortUnique() {
+    Arrays.sort(_slots, 0, _size);
+    int n = 0;
+    for (int i = 0; i < _size; i++) {
+      if (n == 0 || _slots[n - 1] != _slots[i]) {
+        _slots[n++] = _slots[i];
+      }
+    }
+    _size = n;
+    return this;
+  }
+
+}
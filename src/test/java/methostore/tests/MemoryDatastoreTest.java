@@ -0,0 +1,92 @@
+package methostore.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import methostore.Aggregation;
+import methostore.Datastore;
+import methostore.Entity;
+import methostore.impl.memory.MemoryDatastore;
+import methostore.impl.memory.MemoryDatastoreFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** runs the behavioral tests of {@link MethostoreTest} against the in-memory datastore */
+public class MemoryDatastoreTest extends MethostoreTest {
+
+  @Override
+  protected Datastore createDatastore() {
+    return MemoryDatastoreFactory.createDatastore();
+  }
+
+  @Override
+  protected void closeDatastore(Datastore ds) {
+  }
+
+  @Test
+  public void testConcurrentWritesAndIndexes() throws Exception {
+    final MemoryDatastore mds = MemoryDatastoreFactory.createDatastore(4);
+    final List<Entity> entities = new ArrayList<Entity>();
+    for (int i=0; i<400; i++) {
+      Entity e = mds.createEntity();
+      e.setPropertyAsKeyword("city", i % 2 == 0 ? "paris" : "new york");
+      e.setProperty("tags", "t"+(i % 10)+" all");
+      e.setPropertyAsLong("age", i);
+      e.setPropertyAsDouble("weight", i / 4.0);
+      entities.add(e);
+    }
+
+    // the threads put, update and delete disjoint entities
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t=0; t<4; t++) {
+      final int first = t * 100;
+      threads.add(new Thread() {
+        public void run() {
+          for (Entity e : entities.subList(first, first + 100)) {
+            mds.put(e);
+          }
+          for (Entity e : entities.subList(first, first + 50)) {
+            mds.put(mds.get(e.getId()).setPropertyAsKeyword("city", "lyon"));
+          }
+          for (Entity e : entities.subList(first + 90, first + 100)) {
+            mds.delete(e);
+          }
+        }
+      });
+    }
+    for (Thread t : threads) { t.start(); }
+    for (Thread t : threads) { t.join(); }
+
+    Assert.assertEquals(360, mds.size());
+    Assert.assertEquals(200, mds.count("city:lyon"));
+    // the postings of the previous values are removed
+    Assert.assertEquals(80, mds.count("city:paris"));
+    Assert.assertEquals(360, mds.count("tags:all"));
+    Assert.assertEquals(36, mds.count("tags:t3"));
+    Assert.assertEquals(360, mds.count("tags:t*"));
+
+    // the query syntax: optional, required and prohibited items
+    Assert.assertEquals(72, mds.count("tags:t3 tags:t4"));
+    Assert.assertEquals(36, mds.count("+tags:t3 tags:t4"));
+    Assert.assertEquals(324, mds.count("tags:all -tags:t3"));
+    Assert.assertEquals(0, mds.count("-tags:t3"));
+
+    // the column scans
+    Assert.assertEquals(11, mds.searchEntities(mds.createQuery().addRange("age", 100L, 110L)).size());
+    Assert.assertEquals(5, mds.searchEntities(mds.createQuery().addRange("weight", 25.0, 26.0)).size());
+    Assert.assertEquals(0, mds.searchEntities(mds.createQuery().addRange("age", 390L, 399L)).size());
+
+    Aggregation a = mds.aggregate(mds.createQuery().addRange("age", 0L, 99L), mds.createAggregation().addFacet("city").addStats("age"));
+    Assert.assertEquals(90, a.getCount());
+    Assert.assertEquals(Integer.valueOf(50), a.getFacet("city").get("lyon"));
+    Assert.assertEquals(89, a.getStats("age").getMax(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxResults() {
+    // as the Lucene datastore
+    MemoryDatastoreFactory.createDatastore().setMaxResults(0);
+  }
+
+}
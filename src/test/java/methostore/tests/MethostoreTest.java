@@ -1,22 +1,79 @@
 package methostore.tests;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import methostore.Aggregation;
 import methostore.Datastore;
 import methostore.Entity;
+import methostore.EntityCursor;
+import methostore.impl.lucene.LuceneAsyncWriter;
+import methostore.impl.lucene.LuceneBackup;
+import methostore.impl.lucene.LuceneBulkLoader;
+import methostore.impl.lucene.LuceneChange;
+import methostore.impl.lucene.LuceneChangeFeed;
+import methostore.impl.lucene.LuceneChangeLog;
 import methostore.impl.lucene.LuceneDatastoreFactory;
+import methostore.impl.lucene.LuceneDatastoreImpl;
+import methostore.impl.lucene.LuceneDatastoreOptions;
+import methostore.impl.lucene.LuceneMaintenance;
+import methostore.impl.lucene.LuceneMetrics;
+import methostore.impl.lucene.LuceneMetricsListener.Operation;
+import methostore.impl.lucene.LuceneSchema;
+import methostore.impl.lucene.MethostoreException;
+import methostore.impl.lucene.ShardedLuceneDatastore;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 public class MethostoreTest {
  
   private Datastore ds;
+
+  /** returns the datastore under test, subclasses test other implementations */
+  protected Datastore createDatastore() {
+    return LuceneDatastoreFactory.createDatastore("/tmp/methostore");
+  }
+
+  protected void closeDatastore(Datastore ds) {
+    // releases the write lock for the next test
+    ((LuceneDatastoreImpl) ds).close();
+  }
+
+  /** skips the tests of the Lucene implementation when another one is tested */
+  private void assumeLucene() {
+    Assume.assumeTrue(ds instanceof LuceneDatastoreImpl);
+  }
   
   @Before
   public void init() {
-    ds = LuceneDatastoreFactory.createDatastore("/tmp/methostore"); 
+    ds = createDatastore(); 
+  }
+
+  @After
+  public void close() {
+    closeDatastore(ds);
   }
   
   @Test
@@ -93,4 +150,945 @@ public class MethostoreTest {
     }
 
   }
+
+  @Test
+  public void testProjection() {
+    Entity e = ds.createEntity();
+    String id = e.getId();
+    String nameVal = UUID.randomUUID().toString();
+    String cityVal = UUID.randomUUID().toString().split("-")[0];
+    e.setProperty("name", nameVal);
+    e.setProperty("city", cityVal);
+    ds.put(e);
+
+    // only the requested properties (and the ID) are loaded
+    Entity projected = ds.searchEntities("name:"+nameVal, Collections.singleton("city")).get(0);
+    Assert.assertEquals(id, projected.getId());
+    Assert.assertEquals(cityVal, projected.getProperty("city"));
+    Assert.assertFalse(projected.hasProperty("name"));
+    Assert.assertEquals(nameVal, ds.get(id, Collections.singleton("name")).getProperty("name"));
+    Assert.assertFalse(ds.get(id, Collections.singleton("name")).hasProperty("city"));
+  }
+
+  @Test
+  public void testCountSizeExists() {
+    int initSize = ds.size();
+    Assert.assertEquals(initSize, ds.getAllEntities().size());
+    String nameVal = UUID.randomUUID().toString();
+    String cityVal = UUID.randomUUID().toString().split("-")[0];
+    Entity e = ds.createEntity();
+    e.setProperty("name", nameVal);
+    e.setProperty("city", cityVal);
+    ds.put(e);
+    Assert.assertEquals(initSize+1, ds.size());
+    Assert.assertEquals(1, ds.count("name:"+nameVal));
+    Assert.assertEquals(1, ds.count(Collections.singletonMap("city", cityVal)));
+    Assert.assertTrue(ds.exists(e.getId()));
+    Assert.assertFalse(ds.exists(UUID.randomUUID().toString()));
+
+    // an update does not change the size
+    ds.put(ds.get(e.getId()).setProperty("name", "joe"));
+    Assert.assertEquals(initSize+1, ds.size());
+    Assert.assertEquals(0, ds.count("name:"+nameVal));
+
+    ds.delete(e);
+    Assert.assertEquals(initSize, ds.size());
+    Assert.assertFalse(ds.exists(e.getId()));
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    assumeLucene();
+    final LuceneDatastoreImpl lds = ((LuceneDatastoreImpl) ds).setGroupCommit(20, 8);
+    int initSize = ds.getAllEntities().size();
+    final String city = UUID.randomUUID().toString().split("-")[0];
+    
+    // concurrent puts are merged into a few commits
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i=0; i<16; i++) {
+      threads.add(new Thread() {
+        public void run() {
+          Entity e = lds.createEntity();
+          e.setProperty("city", city);
+          lds.put(e);
+        }
+      });
+    }
+    for (Thread t : threads) { t.start(); }
+    for (Thread t : threads) { t.join(); }
+    Assert.assertEquals(initSize+16, ds.getAllEntities().size());
+    Assert.assertEquals(16, ds.searchEntities("city:"+city).size());
+
+    // deletes are also group committed
+    for (Entity e : ds.searchEntities("city:"+city)) {
+      lds.delete(e);
+    }
+    Assert.assertEquals(initSize, ds.getAllEntities().size());
+  }
+
+  @Test
+  public void testBatchWrites() {
+    int initSize = ds.getAllEntities().size();
+    String city = UUID.randomUUID().toString().split("-")[0];
+    List<Entity> entities = new ArrayList<Entity>();
+    List<String> ids = new ArrayList<String>();
+    for (int i=0; i<10; i++) {
+      Entity e = ds.createEntity();
+      e.setProperty("city", city);
+      e.setProperty("rank", i%2==0?"even":"odd");
+      entities.add(e);
+      ids.add(e.getId());
+    }
+    ds.putAll(entities);
+    Assert.assertEquals(initSize+10, ds.getAllEntities().size());
+    
+    ds.deleteByQuery("+city:"+city+" +rank:odd");
+    Assert.assertEquals(initSize+5, ds.getAllEntities().size());
+
+    ds.deleteAll(ids);
+    Assert.assertEquals(initSize, ds.getAllEntities().size());
+  }
+
+  @Test
+  public void testCursors() {
+    if (ds instanceof LuceneDatastoreImpl) {
+      ((LuceneDatastoreImpl) ds).setPageSize(3);
+    }
+    String city = UUID.randomUUID().toString().split("-")[0];
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i=0; i<10; i++) {
+      entities.add(ds.createEntity().setProperty("city", city));
+    }
+    ds.putAll(entities);
+
+    int n = 0;
+    EntityCursor c = ds.iterateEntities("city:"+city);
+    try {
+      while (c.hasNext()) {
+        Assert.assertEquals(city, c.next().getProperty("city"));
+        n++;
+      }
+    } finally {
+      c.close();
+    }
+    Assert.assertEquals(10, n);
+
+    n = 0;
+    EntityCursor all = ds.iterateAllEntities();
+    try {
+      while (all.hasNext()) {
+        all.next();
+        n++;
+      }
+    } finally {
+      all.close();
+    }
+    Assert.assertEquals(ds.getAllEntities().size(), n);
+  }
+
+  @Test
+  public void testSchema() {
+    assumeLucene();
+    String code = "A B "+UUID.randomUUID().toString();
+    Entity e = ds.createEntity();
+    String id = e.getId();
+    e.setPropertyAsKeyword("code", code);
+    e.setProperty("name", "x");
+    ds.put(e);
+    Assert.assertEquals(LuceneSchema.Type.KEYWORD, ((LuceneDatastoreImpl) ds).getSchema().getProperty("code").getType());
+    // the analyzer is not stored in each document anymore
+    Assert.assertFalse(ds.get(id).hasProperty("__meta_code"));
+
+    // a loaded entity is re-indexed with the analyzers of the schema
+    Entity loaded = ds.get(id);
+    loaded.setProperty("name", "y");
+    ds.put(loaded);
+    Assert.assertEquals(1, ds.count(Collections.singletonMap("code", code)));
+
+    // the schema is persisted with the index
+    ((LuceneDatastoreImpl) ds).close();
+    ds = LuceneDatastoreFactory.createDatastore("/tmp/methostore");
+    Assert.assertEquals(LuceneSchema.Type.KEYWORD, ((LuceneDatastoreImpl) ds).getSchema().getProperty("code").getType());
+  }
+
+  @Test
+  public void testStructuredQuery() {
+    String city = UUID.randomUUID().toString().split("-")[0];
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i=0; i<10; i++) {
+      Entity e = ds.createEntity();
+      e.setProperty("city", city);
+      e.setProperty("name", "name"+i);
+      e.setPropertyAsLong("age", 20+i);
+      e.setPropertyAsDouble("weight", 50.5+i);
+      entities.add(e);
+    }
+    ds.putAll(entities);
+
+    Assert.assertEquals(10, ds.searchEntities(ds.createQuery().addItem("city", city)).size());
+    Assert.assertEquals(10, ds.searchEntities(ds.createQuery().addFilter("city", city)).size());
+    // the filter is served from the cache the second time
+    Assert.assertEquals(10, ds.searchEntities(ds.createQuery().addFilter("city", city)).size());
+    Assert.assertEquals(3, ds.searchEntities(ds.createQuery().addFilter("city", city).addRange("age", 22, 24)).size());
+    Assert.assertEquals(2, ds.searchEntities(ds.createQuery().addFilter("city", city).addRange("weight", 51.0, 53.0)).size());
+    Assert.assertEquals(10, ds.searchEntities(ds.createQuery().addFilter("city", city).addPrefix("name", "name")).size());
+    Assert.assertEquals(2, ds.searchEntities(ds.createQuery().addFilter("city", city)
+        .addAnyOf(ds.createQuery().addItem("name", "name1"), ds.createQuery().addItem("name", "name2"))).size());
+    Assert.assertEquals(9, ds.searchEntities(ds.createQuery().addFilter("city", city)
+        .addNot(ds.createQuery().addItem("name", "name1"))).size());
+  }
+
+  @Test
+  public void testRangeAndSort() {
+    if (ds instanceof LuceneDatastoreImpl) {
+      ((LuceneDatastoreImpl) ds).getSchema().define("score", LuceneSchema.Type.LONG, true, true, false, 8);
+    }
+    String city = UUID.randomUUID().toString().split("-")[0];
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i=0; i<10; i++) {
+      Entity e = ds.createEntity();
+      e.setProperty("city", city);
+      e.setPropertyAsLong("score", (i*7)%10);
+      e.setPropertyAsDouble("weight", 10.5*i);
+      entities.add(e);
+    }
+    ds.putAll(entities);
+
+    List<Entity> l = ds.searchEntities(ds.createQuery().addFilter("city", city)
+        .addRangeFilter("score", 2, 8).orderBy("score", true));
+    Assert.assertEquals(7, l.size());
+    for (int i=0; i<7; i++) {
+      Assert.assertEquals(8-i, l.get(i).getLong("score"));
+    }
+
+    l = ds.searchEntities(ds.createQuery().addFilter("city", city)
+        .addRangeFilter("weight", 20.0, 50.0).orderBy("weight", false));
+    Assert.assertEquals(3, l.size());
+    Assert.assertEquals(21.0, l.get(0).getDouble("weight"), 0.00001);
+    Assert.assertEquals(42.0, l.get(2).getDouble("weight"), 0.00001);
+  }
+
+  @Test
+  public void testEntityCache() {
+    assumeLucene();
+    LuceneDatastoreImpl lds = ((LuceneDatastoreImpl) ds).setEntityCacheSize(100);
+    Entity e = ds.createEntity();
+    String id = e.getId();
+    e.setProperty("name", "alice");
+    ds.put(e);
+
+    Assert.assertEquals("alice", ds.get(id).getProperty("name"));
+    Entity cached = ds.get(id);
+    Assert.assertEquals(1, lds.getEntityCache().getHits());
+    Assert.assertEquals(1, lds.getEntityCache().getMisses());
+    
+    // the cache returns copies
+    cached.setProperty("name", "bob");
+    Assert.assertEquals("alice", ds.get(id).getProperty("name"));
+    
+    // writes invalidate the cache
+    ds.put(cached);
+    Assert.assertEquals("bob", ds.get(id).getProperty("name"));
+    ds.delete(cached);
+    Assert.assertFalse(ds.exists(id));
+    Assert.assertEquals(0, lds.getEntityCache().size());
+  }
+
+  @Test
+  public void testResultCache() {
+    assumeLucene();
+    LuceneDatastoreImpl lds = ((LuceneDatastoreImpl) ds).setResultCacheMaxBytes(1 << 20);
+    String city = UUID.randomUUID().toString().split("-")[0];
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i=0; i<3; i++) {
+      entities.add(ds.createEntity().setProperty("city", city));
+    }
+    ds.putAll(entities);
+
+    Assert.assertEquals(3, ds.searchEntities("city:"+city).size());
+    // the same query, normalized
+    Assert.assertEquals(3, ds.searchEntities(" city:"+city+" ").size());
+    Assert.assertEquals(3, ds.searchEntities(Collections.singletonMap("city", city)).size());
+    Assert.assertEquals(3, ds.searchEntities(Collections.singletonMap("city", city)).size());
+    Assert.assertEquals(2, lds.getResultCache().getHits());
+    Assert.assertEquals(2, lds.getResultCache().getMisses());
+    Assert.assertEquals(0.5, lds.getResultCache().getHitRate(), 0);
+
+    // a write makes the searcher and the cached results outdated
+    ds.put(ds.createEntity().setProperty("city", city));
+    Assert.assertEquals(4, ds.searchEntities("city:"+city).size());
+    Assert.assertEquals(1, lds.getResultCache().getInvalidations());
+    Assert.assertEquals(1, lds.getResultCache().size());
+
+    // the query strings are parsed again with another analyzer
+    lds.setAnalyzer(new WhitespaceAnalyzer(Version.LUCENE_34));
+    Assert.assertEquals(0, lds.getResultCache().size());
+
+    // a Lucene query modified after a search is not mistaken for the cached one
+    BooleanQuery q = new BooleanQuery();
+    q.add(new TermQuery(new Term("city", city)), Occur.MUST);
+    Assert.assertEquals(4, lds.searchEntities(q).size());
+    q.add(new TermQuery(new Term("city", "nowhere")), Occur.MUST);
+    Assert.assertEquals(0, lds.searchEntities(q).size());
+
+    // the entries beyond the max size are evicted
+    lds.setResultCacheMaxBytes(1);
+    Assert.assertEquals(0, lds.getResultCache().size());
+    Assert.assertEquals(4, ds.searchEntities("city:"+city).size());
+    Assert.assertEquals(0, lds.getResultCache().getBytes());
+    Assert.assertTrue(lds.getResultCache().getEvictions() >= 2);
+  }
+
+  @Test
+  public void testGetAll() {
+    List<Entity> entities = new ArrayList<Entity>();
+    List<String> ids = new ArrayList<String>();
+    for (int i=0; i<5; i++) {
+      Entity e = ds.createEntity().setProperty("name", "n"+i);
+      entities.add(e);
+      ids.add(e.getId());
+    }
+    ds.putAll(entities);
+    String missing = UUID.randomUUID().toString();
+    ids.add(missing);
+
+    Map<String, Entity> m = ds.getAll(ids);
+    Assert.assertEquals(5, m.size());
+    Assert.assertFalse(m.containsKey(missing));
+    for (int i=0; i<5; i++) {
+      Assert.assertEquals("n"+i, m.get(ids.get(i)).getProperty("name"));
+    }
+  }
+
+  @Test
+  public void testOptions() {
+    assumeLucene();
+    LuceneDatastoreImpl mmap = LuceneDatastoreFactory.createDatastore("/tmp/methostore-mmap",
+        new LuceneDatastoreOptions().setDirectoryType(LuceneDatastoreOptions.DirectoryType.MMAP)
+          .setNRTCaching(5, 60).setRAMBufferSizeMB(32));
+    try {
+      Entity e = mmap.createEntity().setProperty("name", "mmap");
+      mmap.put(e);
+      Assert.assertEquals("mmap", mmap.get(e.getId()).getProperty("name"));
+      mmap.delete(e);
+      Assert.assertFalse(mmap.exists(e.getId()));
+    } finally {
+      mmap.close();
+    }
+  }
+
+  @Test
+  public void testShards() {
+    assumeLucene();
+    ShardedLuceneDatastore sds = LuceneDatastoreFactory.createShardedDatastore(4);
+    try {
+      List<Entity> entities = new ArrayList<Entity>();
+      for (int i=0; i<20; i++) {
+        Entity e = sds.createEntity();
+        e.setProperty("city", "paris");
+        e.setPropertyAsLong("age", i);
+        entities.add(e);
+      }
+      sds.putAll(entities);
+      Assert.assertEquals(20, sds.size());
+      Assert.assertEquals(20, sds.count("city:paris"));
+      Assert.assertEquals(20, sds.searchEntities("city:paris").size());
+      for (Entity e : entities) {
+        Assert.assertTrue(sds.exists(e.getId()));
+      }
+      Assert.assertEquals(1, sds.getAll(Collections.singleton(entities.get(3).getId())).size());
+
+      // top-N merged by sort key
+      List<Entity> l = sds.searchEntities(sds.createQuery().addRangeFilter("age", 5L, 14L).orderBy("age", true));
+      Assert.assertEquals(10, l.size());
+      for (int i=0; i<10; i++) {
+        Assert.assertEquals(14-i, l.get(i).getLong("age"));
+      }
+
+      // the cached results of the shards keep the sort keys merged by the sharded datastore
+      for (LuceneDatastoreImpl shard : sds.getShards()) {
+        shard.setResultCacheMaxBytes(1 << 20);
+      }
+      for (int run=0; run<2; run++) {
+        l = sds.searchEntities(sds.createQuery().addRangeFilter("age", 5L, 14L).orderBy("age", false));
+        Assert.assertEquals(10, l.size());
+        for (int i=0; i<10; i++) {
+          Assert.assertEquals(5+i, l.get(i).getLong("age"));
+        }
+      }
+      Assert.assertTrue(sds.getShards().get(0).getResultCache().getHits() > 0);
+
+      sds.delete(entities.get(0));
+      Assert.assertEquals(19, sds.getAllEntities().size());
+    } finally {
+      sds.close();
+    }
+  }
+
+  @Test
+  public void testShardLayout() throws Exception {
+    assumeLucene();
+    String dir = "/tmp/methostore-layout";
+    FileUtils.deleteDirectory(new File(dir));
+    ShardedLuceneDatastore sds = LuceneDatastoreFactory.createShardedDatastore(dir+"/a", dir+"/b");
+    sds.put(sds.createEntity().setProperty("name", "layout"));
+    sds.close();
+
+    // a shard given at another position
+    try {
+      LuceneDatastoreFactory.createShardedDatastore(dir+"/new", dir+"/a");
+      Assert.fail();
+    } catch (MethostoreException expected) {
+    }
+    // the shards opened by the failed attempt were closed
+    sds = LuceneDatastoreFactory.createShardedDatastore(dir+"/new", dir+"/b");
+    sds.close();
+    sds = LuceneDatastoreFactory.createShardedDatastore(dir+"/a", dir+"/b");
+    try {
+      Assert.assertEquals(1, sds.count("name:layout"));
+    } finally {
+      sds.close();
+    }
+  }
+
+  @Test
+  public void testMaintenance() throws Exception {
+    assumeLucene();
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    try {
+      // one segment per put
+      for (int i=0; i<10; i++) {
+        lds.put(lds.createEntity().setProperty("name", "n"+i));
+      }
+      lds.delete(lds.searchEntity("name:n0"));
+      Assert.assertEquals(LuceneMaintenance.State.DONE, lds.getMaintenance().expungeDeletes().get());
+      Assert.assertEquals(LuceneMaintenance.State.DONE, lds.getMaintenance().forceMerge(1).get());
+      Assert.assertEquals(1, lds.getMaintenance().getSegmentCount());
+      Assert.assertEquals(9, lds.size());
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testMetrics() {
+    assumeLucene();
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    LuceneMetrics metrics = new LuceneMetrics();
+    lds.setMetricsListener(metrics);
+    try {
+      Entity e = lds.createEntity().setProperty("name", "foo");
+      lds.put(e);
+      lds.putFast(lds.createEntity().setProperty("name", "foo"));
+      lds.commit();
+      Assert.assertEquals("foo", lds.get(e.getId()).getProperty("name"));
+      Assert.assertEquals(2, lds.searchEntities("name:foo").size());
+      lds.delete(e);
+
+      Assert.assertEquals(2, metrics.getCount(Operation.PUT));
+      Assert.assertTrue(metrics.getCount(Operation.COMMIT) >= 2);
+      Assert.assertEquals(1, metrics.getCount(Operation.GET));
+      Assert.assertEquals(1, metrics.getCount(Operation.SEARCH));
+      Assert.assertEquals(2, metrics.getSizes(Operation.SEARCH).getMax());
+      Assert.assertEquals(1, metrics.getCount(Operation.DELETE));
+      Assert.assertTrue(metrics.getCount(Operation.REOPEN) >= 1);
+      Assert.assertEquals(3, metrics.getEntitiesLoaded());
+      Assert.assertTrue(metrics.getStoredBytesLoaded() > 0);
+      Assert.assertTrue(metrics.getSegmentCount() >= 1);
+      Assert.assertTrue(metrics.getLatencies(Operation.GET).getPercentile(0.99) > 0);
+      Assert.assertTrue(metrics.dump().contains("search: count=1"));
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testAsyncWrites() throws Exception {
+    assumeLucene();
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    try {
+      LuceneAsyncWriter writer = lds.createAsyncWriter(4, 100, LuceneAsyncWriter.Backpressure.BLOCK, LuceneAsyncWriter.Durability.VISIBLE);
+      List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+      List<Entity> entities = new ArrayList<Entity>();
+      for (int i=0; i<200; i++) {
+        Entity e = lds.createEntity().setProperty("name", "async");
+        entities.add(e);
+        futures.add(writer.put(e));
+      }
+      for (CompletableFuture<Void> f : futures) {
+        f.get();
+      }
+      Assert.assertEquals(200, lds.count("name:async"));
+      writer.delete(entities.get(0)).get();
+      Assert.assertFalse(lds.exists(entities.get(0).getId()));
+
+      LuceneAsyncWriter committed = lds.createAsyncWriter(1, 10, LuceneAsyncWriter.Backpressure.FAIL_FAST, LuceneAsyncWriter.Durability.COMMITTED);
+      committed.putAll(entities.subList(0, 10)).get();
+      Assert.assertEquals(200, lds.count("name:async"));
+
+      // writes after close are rejected
+      writer.close();
+      try {
+        writer.put(lds.createEntity()).get();
+        Assert.fail();
+      } catch (ExecutionException expected) {
+        Assert.assertTrue(expected.getCause() instanceof RejectedExecutionException);
+      }
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testAsyncWriterClose() throws Exception {
+    assumeLucene();
+    final LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    try {
+      for (LuceneAsyncWriter.Backpressure backpressure : new LuceneAsyncWriter.Backpressure[] {LuceneAsyncWriter.Backpressure.BLOCK, LuceneAsyncWriter.Backpressure.SHED}) {
+        // a tiny queue, full while the writer is closed
+        final LuceneAsyncWriter writer = lds.createAsyncWriter(2, 1, backpressure, LuceneAsyncWriter.Durability.INDEXED);
+        final List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t=0; t<4; t++) {
+          threads.add(new Thread() {
+            public void run() {
+              for (int i=0; i<200; i++) {
+                futures.add(writer.put(lds.createEntity().setProperty("name", "closing")));
+              }
+            }
+          });
+        }
+        for (Thread t : threads) { t.start(); }
+        Thread.sleep(5);
+        writer.close();
+        for (Thread t : threads) { t.join(); }
+        // every write is either indexed or rejected, none is left pending
+        for (CompletableFuture<Void> f : futures) {
+          try {
+            f.get(1, TimeUnit.SECONDS);
+          } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof RejectedExecutionException);
+          }
+        }
+      }
+    } finally {
+      lds.close();
+    }
+  }
+
+  /** n entities with the IDs bulk-0, bulk-1..., failing after failAfter entities */
+  private static Iterator<Entity> bulkEntities(final Datastore ds, final int n, final int failAfter) {
+    return new Iterator<Entity>() {
+      private int _i = 0;
+      @Override
+      public boolean hasNext() {
+        return _i < n;
+      }
+      @Override
+      public Entity next() {
+        if (_i == failAfter) {
+          throw new IllegalStateException("input failure");
+        }
+        Entity e = ds.createEntity();
+        e.setPropertyAsKeyword("_key", "bulk-"+_i);
+        e.setProperty("name", "bulk");
+        e.setPropertyAsLong("rank", _i++);
+        return e;
+      }
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Test
+  public void testBulkLoad() throws Exception {
+    assumeLucene();
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    try {
+      LuceneBulkLoader loader = lds.createBulkLoader("/tmp/methostore-bulkload").setThreads(3).setChunkSize(50);
+      // a load dying midway
+      try {
+        loader.load("load1", bulkEntities(lds, 250, 120));
+        Assert.fail();
+      } catch (MethostoreException expected) {
+      }
+      Assert.assertEquals(0, lds.size());
+
+      // the restart skips the chunks already indexed
+      LuceneChangeFeed.Subscription subscription = lds.getChangeFeed().subscribe(10);
+      Assert.assertTrue(loader.load("load1", bulkEntities(lds, 250, -1)));
+      Assert.assertEquals(2, loader.getChunksSkipped());
+      // a single change tells the consumers to read the datastore again
+      LuceneChange change = subscription.poll(0, TimeUnit.SECONDS);
+      Assert.assertEquals(LuceneChange.Type.BULK_LOAD, change.getType());
+      Assert.assertEquals("load1", change.getId());
+      Assert.assertNull(subscription.poll(0, TimeUnit.SECONDS));
+      subscription.close();
+      Assert.assertEquals(250, lds.size());
+      Assert.assertEquals(250, lds.count("name:bulk"));
+      Assert.assertEquals(42, lds.get("bulk-42").getLong("rank"));
+      Assert.assertFalse(loader.load("load1", bulkEntities(lds, 250, -1)));
+
+      // a reload replaces the entities with the same IDs
+      Assert.assertTrue(loader.load("load2", bulkEntities(lds, 100, -1)));
+      Assert.assertEquals(250, lds.size());
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testSnapshot() {
+    assumeLucene();
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    try {
+      List<Entity> entities = new ArrayList<Entity>();
+      for (int i=0; i<3000; i++) {
+        Entity e = lds.createEntity();
+        e.setProperty("name", "snap "+i+" \u00e9t\u00e9");
+        e.setPropertyAsKeyword("city", "new york");
+        e.setPropertyAsLong("age", i);
+        e.setPropertyAsDouble("weight", i / 2.0);
+        entities.add(e);
+      }
+      lds.putAll(entities);
+      for (boolean compress : new boolean[] {false, true}) {
+        String file = "/tmp/methostore-snapshot-"+compress;
+        Assert.assertEquals(3000, lds.exportSnapshot(file, compress));
+        LuceneDatastoreImpl copy = LuceneDatastoreFactory.createDatastore();
+        try {
+          Assert.assertEquals(3000, copy.importSnapshot(file));
+          Assert.assertEquals(3000, copy.size());
+          Entity e = copy.get(entities.get(42).getId());
+          Assert.assertEquals("snap 42 \u00e9t\u00e9", e.getProperty("name"));
+          Assert.assertEquals(42, e.getLong("age"));
+          Assert.assertEquals(21.0, e.getDouble("weight"), 0);
+          Assert.assertEquals(1, copy.searchEntities(copy.createQuery().addItem("city", "new york").addRange("age", 42L, 42L)).size());
+        } finally {
+          copy.close();
+        }
+      }
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testBackup() throws Exception {
+    assumeLucene();
+    String dir = "/tmp/methostore-backup";
+    FileUtils.deleteDirectory(new File(dir));
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    try {
+      for (int i=0; i<5; i++) {
+        lds.put(lds.createEntity().setProperty("name", "backup"+i));
+      }
+      LuceneBackup first = lds.backup(dir);
+      Assert.assertTrue(first.getFilesCopied() > 0);
+      Assert.assertEquals(0, first.getFilesSkipped());
+
+      // only the new segment is copied, the files which are not part of an index are kept
+      FileUtils.writeStringToFile(new File(dir, "notes.txt"), "first backup", "UTF-8");
+      lds.put(lds.createEntity().setProperty("name", "backup5"));
+      LuceneBackup second = lds.backup(dir);
+      Assert.assertTrue(new File(dir, "notes.txt").exists());
+      Assert.assertTrue(second.getFilesSkipped() > 0);
+      Assert.assertTrue(second.getFilesCopied() < first.getFilesCopied() + second.getFilesSkipped());
+
+      // a snapshot pins its commit, even when its segments are merged away
+      IndexCommit pinned = lds.snapshot("pinned");
+      lds.getMaintenance().forceMerge(1).get();
+      for (String file : pinned.getFileNames()) {
+        Assert.assertTrue(pinned.getDirectory().fileExists(file));
+      }
+      lds.release("pinned");
+
+      LuceneDatastoreImpl restored = LuceneDatastoreFactory.createDatastore(dir);
+      try {
+        Assert.assertEquals(6, restored.size());
+      } finally {
+        restored.close();
+      }
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testAggregation() {
+    assumeLucene();
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    ShardedLuceneDatastore sds = LuceneDatastoreFactory.createShardedDatastore(3);
+    try {
+      for (Datastore d : new Datastore[] {lds, sds}) {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i=0; i<30; i++) {
+          Entity e = d.createEntity();
+          e.setPropertyAsKeyword("city", i % 3 == 0 ? "paris" : "new york");
+          e.setPropertyAsLong("age", i);
+          if (i < 10) {
+            e.setPropertyAsDouble("weight", i / 2.0);
+          }
+          e.setProperty("kind", "person");
+          entities.add(e);
+        }
+        d.putAll(entities);
+
+        Aggregation a = d.aggregate("kind:person", d.createAggregation().addFacet("city").addStats("age").addStats("weight"));
+        Assert.assertEquals(30, a.getCount());
+        Map<String, Integer> cities = a.getFacet("city");
+        Assert.assertEquals("new york", cities.keySet().iterator().next());
+        Assert.assertEquals(Integer.valueOf(20), cities.get("new york"));
+        Assert.assertEquals(Integer.valueOf(10), cities.get("paris"));
+        Assert.assertEquals(30, a.getStats("age").getCount());
+        Assert.assertEquals(435, a.getStats("age").getSum(), 0);
+        Assert.assertEquals(0, a.getStats("age").getMin(), 0);
+        Assert.assertEquals(29, a.getStats("age").getMax(), 0);
+        Assert.assertEquals(10, a.getStats("weight").getCount());
+        Assert.assertEquals(2.25, a.getStats("weight").getAverage(), 1e-9);
+
+        a = d.aggregate(d.createQuery().addItem("city", "paris"), d.createAggregation().addStats("age"));
+        Assert.assertEquals(10, a.getCount());
+        Assert.assertEquals(27, a.getStats("age").getMax(), 0);
+        Assert.assertNull(a.getFacet("city"));
+      }
+    } finally {
+      lds.close();
+      sds.close();
+    }
+  }
+
+  @Test
+  public void testChangeFeedPayloads() throws Exception {
+    assumeLucene();
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore();
+    try {
+      LuceneChangeFeed.Subscription subscription = lds.getChangeFeed().subscribe(10);
+      Entity e = lds.createEntity().setProperty("name", "before").setPropertyAsLong("age", 1);
+      lds.put(e);
+      // the same object, modified and put again
+      lds.put(e.setProperty("name", "after"));
+      LuceneChange first = subscription.poll(1, TimeUnit.SECONDS);
+      Assert.assertEquals("before", first.getEntity().getProperty("name"));
+      Assert.assertEquals(1, first.getEntity().getLong("age"));
+      Assert.assertEquals("after", subscription.poll(1, TimeUnit.SECONDS).getEntity().getProperty("name"));
+
+      // the query string as given, not the parsed query
+      lds.deleteByQuery("after", "name");
+      LuceneChange deletion = subscription.poll(1, TimeUnit.SECONDS);
+      Assert.assertEquals(LuceneChange.Type.DELETE_BY_QUERY, deletion.getType());
+      Assert.assertEquals("after", deletion.getQuery());
+      Assert.assertEquals("name", deletion.getField());
+      Assert.assertFalse(lds.exists(e.getId()));
+      subscription.close();
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testChangeFeed() throws Exception {
+    assumeLucene();
+    String dir = "/tmp/methostore-changes";
+    FileUtils.deleteDirectory(new File(dir));
+    new File(dir).mkdirs();
+    LuceneDatastoreOptions options = new LuceneDatastoreOptions().setChangeLog(dir+"/changes.log");
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore(dir+"/index", options);
+    Entity e = lds.createEntity().setProperty("name", "feed");
+    try {
+      LuceneChangeFeed.Subscription subscription = lds.getChangeFeed().subscribe(10);
+      LuceneChangeFeed.Subscription slow = lds.getChangeFeed().subscribe(1);
+      lds.put(e);
+      lds.delete(e);
+      LuceneChange put = subscription.poll(1, TimeUnit.SECONDS);
+      Assert.assertEquals(LuceneChange.Type.PUT, put.getType());
+      Assert.assertEquals(e.getId(), put.getId());
+      LuceneChange delete = subscription.poll(1, TimeUnit.SECONDS);
+      Assert.assertEquals(LuceneChange.Type.DELETE, delete.getType());
+      Assert.assertEquals(put.getSequence() + 1, delete.getSequence());
+      Assert.assertNull(subscription.poll(10, TimeUnit.MILLISECONDS));
+
+      // the slow subscription overflowed at the second change
+      Assert.assertTrue(slow.isOverflowed());
+      Assert.assertNotNull(slow.poll(1, TimeUnit.SECONDS));
+      try {
+        slow.poll(1, TimeUnit.SECONDS);
+        Assert.fail();
+      } catch (MethostoreException expected) {
+      }
+      subscription.close();
+    } finally {
+      lds.close();
+    }
+
+    // the numbering continues after a restart
+    lds = LuceneDatastoreFactory.createDatastore(dir+"/index", options);
+    try {
+      Assert.assertEquals(2, lds.getChangeFeed().getSequence());
+      lds.put(lds.createEntity().setPropertyAsLong("age", 42));
+      Assert.assertEquals(3, lds.getChangeFeed().getSequence());
+
+      // a replica resumes from its position in the log
+      LuceneDatastoreImpl replica = LuceneDatastoreFactory.createDatastore();
+      LuceneChangeLog.Reader reader = LuceneChangeLog.openReader(dir+"/changes.log", 1, replica);
+      try {
+        Assert.assertEquals(LuceneChange.Type.DELETE, reader.next().getType());
+        LuceneChange change = reader.next();
+        Assert.assertEquals(3, change.getSequence());
+        Assert.assertEquals(42, change.getEntity().getLong("age"));
+        Assert.assertNull(reader.next());
+      } finally {
+        reader.close();
+        replica.close();
+      }
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testWriteAheadLog() throws Exception {
+    assumeLucene();
+    String dir = "/tmp/methostore-wal";
+    String crashed = "/tmp/methostore-wal-crashed";
+    FileUtils.deleteDirectory(new File(dir));
+    FileUtils.deleteDirectory(new File(crashed));
+    // fsynced every 20 ms, no background commit
+    LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore(dir+"/index",
+        new LuceneDatastoreOptions().setWriteAheadLog(dir+"/wal", 20, 0));
+    Entity a = lds.createEntity().setProperty("name", "a");
+    Entity b = lds.createEntity().setPropertyAsLong("age", 42);
+    Entity c = lds.createEntity().setProperty("name", "c");
+    try {
+      lds.put(c).commit();
+      lds.put(a);
+      lds.putFast(b);
+      lds.deleteFast(c);
+      // the background fsync makes the fast writes durable
+      Thread.sleep(200);
+      // a crash: the index as of its last commit and the log, without closing the datastore
+      FileUtils.copyDirectory(new File(dir), new File(crashed));
+    } finally {
+      lds.close();
+    }
+
+    lds = LuceneDatastoreFactory.createDatastore(crashed+"/index",
+        new LuceneDatastoreOptions().setWriteAheadLog(crashed+"/wal", 20, 0));
+    try {
+      Assert.assertEquals("a", lds.get(a.getId()).getProperty("name"));
+      Assert.assertEquals(42, lds.get(b.getId()).getLong("age"));
+      Assert.assertFalse(lds.exists(c.getId()));
+      // the replay was committed, only the current generation is left
+      Assert.assertEquals(1, new File(crashed+"/wal").list().length);
+    } finally {
+      lds.close();
+    }
+  }
+
+  @Test
+  public void testShardedLogs() throws Exception {
+    assumeLucene();
+    String dir = "/tmp/methostore-wal-shards";
+    String crashed = "/tmp/methostore-wal-shards-crashed";
+    FileUtils.deleteDirectory(new File(dir));
+    FileUtils.deleteDirectory(new File(crashed));
+    LuceneDatastoreOptions options = new LuceneDatastoreOptions().setWriteAheadLog(dir+"/wal", 20, 0).setChangeLog(dir+"/changes.log");
+    ShardedLuceneDatastore sds = LuceneDatastoreFactory.createShardedDatastore(options, dir+"/shard0", dir+"/shard1");
+    List<String> ids = new ArrayList<String>();
+    try {
+      for (int i=0; i<20; i++) {
+        Entity e = sds.createEntity().setPropertyAsLong("rank", i);
+        sds.put(e);
+        ids.add(e.getId());
+      }
+      FileUtils.copyDirectory(new File(dir), new File(crashed));
+    } finally {
+      sds.close();
+    }
+
+    // each shard replays its own log, and only its own writes
+    options = new LuceneDatastoreOptions().setWriteAheadLog(crashed+"/wal", 20, 0);
+    sds = LuceneDatastoreFactory.createShardedDatastore(options, crashed+"/shard0", crashed+"/shard1");
+    try {
+      Assert.assertTrue(new File(crashed+"/wal/shard-0").isDirectory());
+      Assert.assertTrue(new File(crashed+"/wal/shard-1").isDirectory());
+      // the change logs (synced when the first datastore was closed) are not interleaved
+      for (int shard=0; shard<2; shard++) {
+        LuceneDatastoreImpl replica = LuceneDatastoreFactory.createDatastore();
+        LuceneChangeLog.Reader reader = LuceneChangeLog.openReader(dir+"/changes.log.shard-"+shard, 0, replica);
+        try {
+          long sequence = 0;
+          for (LuceneChange change = reader.next(); change != null; change = reader.next()) {
+            Assert.assertEquals(++sequence, change.getSequence());
+          }
+          Assert.assertEquals(sds.getShards().get(shard).size(), sequence);
+        } finally {
+          reader.close();
+          replica.close();
+        }
+      }
+      Assert.assertEquals(20, sds.size());
+      for (String id : ids) {
+        Assert.assertTrue(sds.exists(id));
+      }
+    } finally {
+      sds.close();
+    }
+  }
+
+  @Test
+  public void testWriteAheadLogConcurrentUpdates() throws Exception {
+    assumeLucene();
+    String dir = "/tmp/methostore-wal-updates";
+    String crashed = "/tmp/methostore-wal-updates-crashed";
+    FileUtils.deleteDirectory(new File(dir));
+    FileUtils.deleteDirectory(new File(crashed));
+    final LuceneDatastoreImpl lds = LuceneDatastoreFactory.createDatastore(dir+"/index",
+        new LuceneDatastoreOptions().setWriteAheadLog(dir+"/wal", 20, 0));
+    Entity e = lds.createEntity().setProperty("version", "0");
+    final String id = e.getId();
+    String last;
+    try {
+      lds.put(e);
+      // the threads update the same entity, the log must keep the order of the index
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t=0; t<8; t++) {
+        final List<Entity> versions = new ArrayList<Entity>();
+        for (int i=0; i<200; i++) {
+          versions.add(lds.get(id).setProperty("version", t+"-"+i));
+        }
+        threads.add(new Thread() {
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            for (Entity version : versions) {
+              lds.putFast(version);
+            }
+          }
+        });
+      }
+      for (Thread t : threads) { t.start(); }
+      start.countDown();
+      for (Thread t : threads) { t.join(); }
+      last = lds.get(id).getProperty("version");
+      Thread.sleep(200);
+      FileUtils.copyDirectory(new File(dir), new File(crashed));
+    } finally {
+      lds.close();
+    }
+
+    LuceneDatastoreImpl reopened = LuceneDatastoreFactory.createDatastore(crashed+"/index",
+        new LuceneDatastoreOptions().setWriteAheadLog(crashed+"/wal", 20, 0));
+    try {
+      Assert.assertEquals(last, reopened.get(id).getProperty("version"));
+    } finally {
+      reopened.close();
+    }
+  }
 }